@@ -31,6 +31,8 @@ import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+import org.primesoft.asyncworldedit.worldedit.JobContext;
 
 /**
  *
@@ -40,6 +42,10 @@ public class BlocksHubIntegration {
 
     private boolean m_isInitialized;
     private IBlocksHubApi m_blocksApi;
+    /**
+     * The asynchronous block logger (null if disabled)
+     */
+    private BlocksHubLogger m_logger;
 
     /**
      * Get instance of the core blocks hub plugin
@@ -65,6 +71,28 @@ public class BlocksHubIntegration {
         BlocksHub bh = getBlocksHub(plugin);
         m_blocksApi = bh != null ? bh.getApi() : null;
         m_isInitialized = m_blocksApi != null && m_blocksApi.getVersion() >= 1.0;
+        m_logger = m_isInitialized && ConfigProvider.isAsyncLogEnabled()
+                ? new BlocksHubLogger(plugin, m_blocksApi, ConfigProvider.getLogBufferSize(),
+                        ConfigProvider.getLogFlushInterval(), ConfigProvider.getLogOverflowPolicy())
+                : null;
+    }
+
+    /**
+     * Stop the asynchronous logger, all buffered changes are logged
+     */
+    public void stop() {
+        if (m_logger != null) {
+            m_logger.stop();
+        }
+    }
+
+    /**
+     * Get the asynchronous logger
+     *
+     * @return logger or null if disabled
+     */
+    public BlocksHubLogger getLogger() {
+        return m_logger;
     }
 
     public void logBlock(String player, World world, Location location,
@@ -97,9 +125,30 @@ public class BlocksHubIntegration {
         if (location == null) {
             return false;
         }
-        if (!ConfigProvider.getCheckAccess()) {
+        if (!m_isInitialized || !ConfigProvider.getCheckAccess()) {
             return true;
         }
+
+        final JobContext context = ConfigProvider.isAccessCacheEnabled() ? JobContext.current() : null;
+        if (context != null && world != null) {
+            final int cx = location.getBlockX() >> 4;
+            final int cy = location.getBlockY() >> 4;
+            final int cz = location.getBlockZ() >> 4;
+            final long section = PackedPosition.pack(cx, cy, cz);
+
+            byte access = context.getAccess(world.getName(), section,
+                    ConfigProvider.getAccessCacheTtl() * 1000L);
+            if (access == JobContext.ACCESS_UNKNOWN) {
+                access = checkSection(name, world, cx, cy, cz);
+                context.setAccess(section, access);
+            }
+
+            if (access == JobContext.ACCESS_ALLOWED) {
+                return true;
+            } else if (access == JobContext.ACCESS_DENIED) {
+                return false;
+            }
+        }
         Location l = new Location(world, location.getX(), location.getY(), location.getZ());
         try {
             return canPlace(name, world, l);
@@ -113,11 +162,93 @@ public class BlocksHubIntegration {
         }
     }
 
+    /**
+     * Check the access for the whole chunk section using the section
+     * corners and center. The section is on a boundary if the checks
+     * do not agree. Areas smaller than the section that do not contain
+     * the checked points are not detected.
+     *
+     * @param name
+     * @param world
+     * @param cx section X
+     * @param cy section Y
+     * @param cz section Z
+     * @return the section access
+     */
+    private byte checkSection(String name, World world, int cx, int cy, int cz) {
+        final int x = cx << 4;
+        final int y = cy << 4;
+        final int z = cz << 4;
+
+        int allowed = 0;
+        int checked = 0;
+        for (int dx = 0; dx <= 15; dx += 15) {
+            for (int dy = 0; dy <= 15; dy += 15) {
+                for (int dz = 0; dz <= 15; dz += 15) {
+                    if (canPlace(name, world, new Location(world, x + dx, y + dy, z + dz))) {
+                        allowed++;
+                    }
+                    checked++;
+                }
+            }
+        }
+        if (canPlace(name, world, new Location(world, x + 8, y + 8, z + 8))) {
+            allowed++;
+        }
+        checked++;
+
+        if (allowed == checked) {
+            return JobContext.ACCESS_ALLOWED;
+        } else if (allowed == 0) {
+            return JobContext.ACCESS_DENIED;
+        }
+        return JobContext.ACCESS_MIXED;
+    }
+
+    /**
+     * Log the block change
+     *
+     * @param name
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     * @param oldBlock packed old block (type, data)
+     * @param newBlock packed new block (type, data)
+     */
+    public void logBlock(String name, World world, int x, int y, int z, int oldBlock, int newBlock) {
+        if (!ConfigProvider.getLogBlocks()) {
+            return;
+        }
+
+        if (m_logger != null) {
+            m_logger.log(name, world, x, y, z, oldBlock, newBlock);
+            return;
+        }
+
+        Location l = new Location(world, x, y, z);
+        try {
+            logBlock(name, world, l, oldBlock >>> 8, (byte) oldBlock, newBlock >>> 8, (byte) newBlock);
+        } catch (Exception ex) {
+            PluginMain.log("Error logging block: " + ex.toString());
+            PluginMain.log("Player: " + name);
+            PluginMain.log("World: " + world);
+            PluginMain.log("Location: " + l);
+        }
+    }
+
     public void logBlock(String name, World world, Vector location, BaseBlock oldBlock, BaseBlock newBlock) {
         if (location == null || !ConfigProvider.getLogBlocks()) {
             return;
         }
 
+        if (m_logger != null) {
+            m_logger.log(name, world, location.getBlockX(), location.getBlockY(), location.getBlockZ(),
+                    oldBlock != null ? (oldBlock.getType() << 8) | (oldBlock.getData() & 0xff) : 0,
+                    newBlock != null ? (newBlock.getType() << 8) | (newBlock.getData() & 0xff) : 0);
+            return;
+        }
+
         if (oldBlock == null) {
             oldBlock = new BaseBlock(0);
         }
@@ -0,0 +1,334 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.PrimeSoft.blocksHub.IBlocksHubApi;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+
+/**
+ * Asynchronous block change logger. The block placer adds the changes to
+ * a bounded ring buffer, a background task drains the buffer in batches
+ * to the blocks hub API.
+ *
+ * @author SBPrime
+ */
+public class BlocksHubLogger implements Runnable {
+
+    /**
+     * What to do when the buffer is full
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Drop the new change
+         */
+        Drop,
+        /**
+         * Wait for the background task, the main thread and producers
+         * that wait too long log the change on the calling thread
+         */
+        Wait,
+        /**
+         * Log the change on the calling thread
+         */
+        Sync
+    }
+
+    /**
+     * Number of records released to the producer at once
+     */
+    private final static int RELEASE_BATCH = 256;
+
+    /**
+     * Maximum time (in ms) a producer waits for the space in the buffer
+     */
+    private final static int MAX_WAIT = 1000;
+
+    /**
+     * The server main thread, never waits for the buffer
+     */
+    private final Thread m_mainThread;
+
+    /**
+     * The blocks hub API
+     */
+    private final IBlocksHubApi m_api;
+
+    /**
+     * The overflow policy
+     */
+    private final OverflowPolicy m_overflow;
+
+    /**
+     * Buffer index mask
+     */
+    private final int m_mask;
+
+    /**
+     * Buffer capacity
+     */
+    private final int m_capacity;
+
+    /**
+     * Player names
+     */
+    private final String[] m_players;
+
+    /**
+     * Worlds
+     */
+    private final World[] m_worlds;
+
+    /**
+     * Packed block positions
+     */
+    private final long[] m_positions;
+
+    /**
+     * Old blocks (type << 8 | data)
+     */
+    private final int[] m_oldBlocks;
+
+    /**
+     * New blocks (type << 8 | data)
+     */
+    private final int[] m_newBlocks;
+
+    /**
+     * Next record to drain
+     */
+    private final AtomicLong m_head = new AtomicLong();
+
+    /**
+     * Next record to write
+     */
+    private final AtomicLong m_tail = new AtomicLong();
+
+    /**
+     * Number of dropped changes
+     */
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    /**
+     * Number of logged changes
+     */
+    private final AtomicLong m_logged = new AtomicLong();
+
+    /**
+     * The producers mutex
+     */
+    private final Object m_producerMutex = new Object();
+
+    /**
+     * The consumers mutex
+     */
+    private final Object m_consumerMutex = new Object();
+
+    /**
+     * The drain task
+     */
+    private BukkitTask m_task;
+
+    /**
+     * Create new logger
+     *
+     * @param plugin
+     * @param api the blocks hub API
+     * @param size buffer size (rounded up to power of 2)
+     * @param interval flush interval (ticks)
+     * @param overflow the overflow policy
+     */
+    public BlocksHubLogger(JavaPlugin plugin, IBlocksHubApi api, int size,
+            int interval, OverflowPolicy overflow) {
+        int capacity = Integer.highestOneBit(Math.max(RELEASE_BATCH, size) - 1) << 1;
+
+        m_api = api;
+        m_overflow = overflow;
+        //The logger is created on the main thread
+        m_mainThread = Thread.currentThread();
+        m_capacity = capacity;
+        m_mask = capacity - 1;
+        m_players = new String[capacity];
+        m_worlds = new World[capacity];
+        m_positions = new long[capacity];
+        m_oldBlocks = new int[capacity];
+        m_newBlocks = new int[capacity];
+
+        m_task = plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, this,
+                interval, interval);
+    }
+
+    /**
+     * Add block change to the buffer
+     *
+     * @param player
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     * @param oldBlock old block (type << 8 | data)
+     * @param newBlock new block (type << 8 | data)
+     */
+    public void log(String player, World world, int x, int y, int z,
+            int oldBlock, int newBlock) {
+        synchronized (m_producerMutex) {
+            long tail = m_tail.get();
+            long waitEnd = 0;
+            while (tail - m_head.get() >= m_capacity) {
+                switch (m_overflow) {
+                    case Drop:
+                        m_dropped.incrementAndGet();
+                        return;
+                    case Sync:
+                        logBlock(player, world, x, y, z, oldBlock, newBlock);
+                        return;
+                    case Wait:
+                        final long now = System.currentTimeMillis();
+                        if (waitEnd == 0) {
+                            waitEnd = now + MAX_WAIT;
+                        }
+                        if (Thread.currentThread() == m_mainThread || now >= waitEnd) {
+                            logBlock(player, world, x, y, z, oldBlock, newBlock);
+                            return;
+                        }
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            m_dropped.incrementAndGet();
+                            return;
+                        }
+                        break;
+                }
+            }
+
+            final int idx = (int) (tail & m_mask);
+            m_players[idx] = player;
+            m_worlds[idx] = world;
+            m_positions[idx] = PackedPosition.pack(x, y, z);
+            m_oldBlocks[idx] = oldBlock;
+            m_newBlocks[idx] = newBlock;
+            m_tail.set(tail + 1);
+        }
+    }
+
+    /**
+     * Number of changes waiting in the buffer
+     *
+     * @return
+     */
+    public long getBacklog() {
+        return m_tail.get() - m_head.get();
+    }
+
+    /**
+     * Number of dropped changes
+     *
+     * @return
+     */
+    public long getDropped() {
+        return m_dropped.get();
+    }
+
+    /**
+     * Number of logged changes
+     *
+     * @return
+     */
+    public long getLogged() {
+        return m_logged.get();
+    }
+
+    @Override
+    public void run() {
+        drain();
+    }
+
+    /**
+     * Stop the drain task and log all remaining changes
+     */
+    public void stop() {
+        if (m_task != null) {
+            m_task.cancel();
+            m_task = null;
+        }
+
+        drain();
+    }
+
+    /**
+     * Log all changes in the buffer
+     */
+    private void drain() {
+        synchronized (m_consumerMutex) {
+            final long tail = m_tail.get();
+            long head = m_head.get();
+            while (head < tail) {
+                final long end = Math.min(tail, head + RELEASE_BATCH);
+                for (long i = head; i < end; i++) {
+                    final int idx = (int) (i & m_mask);
+                    final long position = m_positions[idx];
+
+                    logBlock(m_players[idx], m_worlds[idx], PackedPosition.getX(position),
+                            PackedPosition.getY(position), PackedPosition.getZ(position),
+                            m_oldBlocks[idx], m_newBlocks[idx]);
+                    m_players[idx] = null;
+                    m_worlds[idx] = null;
+                }
+
+                head = end;
+                m_head.set(head);
+            }
+        }
+    }
+
+    /**
+     * Log the block change using the blocks hub API
+     *
+     * @param player
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     * @param oldBlock
+     * @param newBlock
+     */
+    private void logBlock(String player, World world, int x, int y, int z,
+            int oldBlock, int newBlock) {
+        try {
+            m_api.logBlock(player, world, new Location(world, x, y, z),
+                    oldBlock >>> 8, (byte) (oldBlock & 0xff),
+                    newBlock >>> 8, (byte) (newBlock & 0xff));
+            m_logged.incrementAndGet();
+        } catch (Exception ex) {
+            m_dropped.incrementAndGet();
+            PluginMain.log("Error logging block: " + ex.toString());
+        }
+    }
+}
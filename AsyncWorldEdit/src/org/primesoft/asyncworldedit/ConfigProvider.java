@@ -63,12 +63,52 @@ public class ConfigProvider {
 
     private static int m_vipBlocksCnt;
 
+    private static int m_timeBudget;
+
+    private static boolean m_coalesceWrites;
+
+    private static boolean m_skipNoOpWrites;
+
+    private static int m_schedulerQuantum;
+
+    private static int m_weight;
+
+    private static int m_vipWeight;
+
+    private static int m_bypassWeight;
+
+    private static int m_consoleWeight;
+
+    private static int m_interactiveJobSize;
+
+    private static int m_laneAging;
+
+    private static boolean m_spillEnabled;
+
+    private static int m_spillThreshold;
+
     private static int m_queueHardLimit;
 
     private static int m_queueSoftLimit;
 
     private static int m_queueMaxSize;
 
+    private static int m_queueWaitTimeout;
+
+    private static boolean m_queuePersistent;
+
+    private static boolean m_journalEnabled;
+
+    private static int m_journalSyncInterval;
+
+    private static int m_snapshotCacheSize;
+
+    private static int m_readBudget;
+
+    private static int m_overlaySize;
+
+    private static int m_snapshotPrefetch;
+
     private static int m_queueTalkInterval;
 
     private static String m_configVersion;
@@ -77,9 +117,35 @@ public class ConfigProvider {
 
     private static boolean m_physicsFreez;
 
+    private static PhysicsWatch.FreezeMode m_physicsFreezMode;
+
+    private static boolean m_physicsSettle;
+
+    private static int m_physicsSettleBudget;
+
+    private static boolean m_compactHistory;
+
+    private static boolean m_historyStore;
+
+    private static int m_historyStoreKeep;
+
+    private static int m_historyStoreMaxSize;
+
     private static boolean m_checkAccess;
 
     private static boolean m_logBlocks;
+
+    private static boolean m_asyncLog;
+
+    private static boolean m_accessCache;
+
+    private static int m_accessCacheTtl;
+
+    private static int m_logBufferSize;
+
+    private static int m_logFlushInterval;
+
+    private static BlocksHubLogger.OverflowPolicy m_logOverflow;
     
     private static boolean m_plotMeFixEnabled;
     
@@ -89,6 +155,16 @@ public class ConfigProvider {
 
     private static boolean m_useBarAPI;
 
+    private static boolean m_throttleEnabled;
+
+    private static double m_throttleTpsLow;
+
+    private static double m_throttleTpsHigh;
+
+    private static double m_throttleMinSpeed;
+
+    private static double m_throttleMaxSpeed;
+
     /**
      * Whether or not setting values to the BarAPI bar will be shown
      * 
@@ -152,6 +228,62 @@ public class ConfigProvider {
         return m_logBlocks;
     }
 
+    /**
+     * Are the access checks cached per chunk section for async jobs.
+     * The section access is sampled, a protected area smaller than the
+     * section may by missed.
+     *
+     * @return
+     */
+    public static boolean isAccessCacheEnabled() {
+        return m_accessCache;
+    }
+
+    /**
+     * How long the cached access checks are valid
+     *
+     * @return time in seconds
+     */
+    public static int getAccessCacheTtl() {
+        return m_accessCacheTtl;
+    }
+
+    /**
+     * Is the asynchronous block logging enabled
+     *
+     * @return
+     */
+    public static boolean isAsyncLogEnabled() {
+        return m_asyncLog;
+    }
+
+    /**
+     * Size of the asynchronous block log buffer
+     *
+     * @return number of block changes
+     */
+    public static int getLogBufferSize() {
+        return m_logBufferSize;
+    }
+
+    /**
+     * How often the asynchronous block log buffer is flushed
+     *
+     * @return interval in ticks
+     */
+    public static int getLogFlushInterval() {
+        return m_logFlushInterval;
+    }
+
+    /**
+     * What to do when the asynchronous block log buffer is full
+     *
+     * @return
+     */
+    public static BlocksHubLogger.OverflowPolicy getLogOverflowPolicy() {
+        return m_logOverflow;
+    }
+
     /**
      * Is block perms checking enabled
      *
@@ -170,6 +302,118 @@ public class ConfigProvider {
         return m_vipBlocksCnt;
     }
 
+    /**
+     * Get the block placing time budget (per-interval)
+     *
+     * @return time budget in ms, 0 if fixed block counts are used
+     */
+    public static int getTimeBudget() {
+        return m_timeBudget;
+    }
+
+    /**
+     * Should repeated writes to the same block by kept only once (last write
+     * wins)
+     *
+     * @return
+     */
+    public static boolean isCoalesceWrites() {
+        return m_coalesceWrites;
+    }
+
+    /**
+     * Should writes that do not change the block by skipped
+     *
+     * @return
+     */
+    public static boolean isSkipNoOpWrites() {
+        return m_skipNoOpWrites;
+    }
+
+    /**
+     * Number of entries a player with weight 1 gets per scheduler turn
+     *
+     * @return
+     */
+    public static int getSchedulerQuantum() {
+        return m_schedulerQuantum;
+    }
+
+    /**
+     * Scheduler weight of a regular player
+     *
+     * @return
+     */
+    public static int getWeight() {
+        return m_weight;
+    }
+
+    /**
+     * Scheduler weight of a player with the AWE.user.vip-queue permission
+     *
+     * @return
+     */
+    public static int getVipWeight() {
+        return m_vipWeight;
+    }
+
+    /**
+     * Scheduler weight of a player with the AWE.admin.queue-bypass permission
+     *
+     * @return
+     */
+    public static int getBypassWeight() {
+        return m_bypassWeight;
+    }
+
+    /**
+     * Scheduler weight of the console and other plugins
+     *
+     * @return
+     */
+    public static int getConsoleWeight() {
+        return m_consoleWeight;
+    }
+
+    /**
+     * Maximum number of blocks of a job in the interactive queue lane, larger
+     * jobs are moved to the bulk lane
+     *
+     * @return
+     */
+    public static int getInteractiveJobSize() {
+        return m_interactiveJobSize;
+    }
+
+    /**
+     * Number of turns a waiting queue lane can by skipped before it is
+     * served first
+     *
+     * @return number of turns, 0 if aging is disabled
+     */
+    public static int getLaneAging() {
+        return m_laneAging;
+    }
+
+    /**
+     * Is the disk spill for oversized block queues enabled
+     *
+     * @return
+     */
+    public static boolean isSpillEnabled() {
+        return m_spillEnabled;
+    }
+
+    /**
+     * Number of blocks a player can keep in the memory queue, blocks above
+     * this number are moved to the spill file
+     *
+     * @return
+     */
+    public static int getSpillThreshold() {
+        return m_spillThreshold;
+    }
+
     public static int getQueueTalkInterval() {
         return m_queueTalkInterval;
     }
@@ -218,6 +462,80 @@ public class ConfigProvider {
         return m_queueSoftLimit;
     }
 
+    /**
+     * Maximum time an async job waits for a locked queue
+     *
+     * @return time in seconds, 0 if the jobs do not wait
+     */
+    public static int getQueueWaitTimeout() {
+        return m_queueWaitTimeout;
+    }
+
+    /**
+     * Are the pending block queues stored when the plugin is disabled and
+     * resumed when the plugin is enabled
+     *
+     * @return
+     */
+    public static boolean isQueuePersistent() {
+        return m_queuePersistent;
+    }
+
+    /**
+     * Is the placement journal enabled
+     *
+     * @return
+     */
+    public static boolean isJournalEnabled() {
+        return m_journalEnabled;
+    }
+
+    /**
+     * The placement journal sync interval
+     *
+     * @return interval in ms
+     */
+    public static int getJournalSyncInterval() {
+        return m_journalSyncInterval;
+    }
+
+    /**
+     * Time the server may spend on the async jobs world reads in one tick
+     *
+     * @return time in ms, 0 if not limited
+     */
+    public static int getReadBudget() {
+        return m_readBudget;
+    }
+
+    /**
+     * Maximum number of blocks written by an async job that are remembered
+     * for the job reads
+     *
+     * @return number of blocks, 0 if the job reads see only the world
+     */
+    public static int getOverlaySize() {
+        return m_overlaySize;
+    }
+
+    /**
+     * Number of chunk snapshots cached by each async job
+     *
+     * @return number of chunks, 0 if the snapshot reads are disabled
+     */
+    public static int getSnapshotCacheSize() {
+        return m_snapshotCacheSize;
+    }
+
+    /**
+     * Number of chunks requested around a missing snapshot
+     *
+     * @return radius in chunks
+     */
+    public static int getSnapshotPrefetch() {
+        return m_snapshotPrefetch;
+    }
+
     /**
      * The default mode
      *
@@ -240,6 +558,116 @@ public class ConfigProvider {
         return m_physicsFreez;
     }
 
+    /**
+     * How the queued blocks are frozen
+     *
+     * @return
+     */
+    public static PhysicsWatch.FreezeMode getPhysicsFreezMode() {
+        return m_physicsFreezMode;
+    }
+
+    /**
+     * Is the physics update of the blocks changed by finished jobs enabled
+     *
+     * @return
+     */
+    public static boolean isPhysicsSettleEnabled() {
+        return m_physicsFreez && m_physicsSettle;
+    }
+
+    /**
+     * Time the server may spend on the physics update in one tick
+     *
+     * @return time in ms
+     */
+    public static int getPhysicsSettleBudget() {
+        return m_physicsSettleBudget;
+    }
+
+    /**
+     * Should the edit sessions keep the undo history in the compact
+     * per chunk section format
+     *
+     * @return
+     */
+    public static boolean isCompactHistory() {
+        return m_compactHistory;
+    }
+
+    /**
+     * Should the old compact histories by written to the disk
+     *
+     * @return
+     */
+    public static boolean isHistoryStoreEnabled() {
+        return m_compactHistory && m_historyStore;
+    }
+
+    /**
+     * Number of the most recent histories each player keeps in memory
+     *
+     * @return
+     */
+    public static int getHistoryStoreKeep() {
+        return m_historyStoreKeep;
+    }
+
+    /**
+     * Histories with more blocks are written to the disk even if they are
+     * recent
+     *
+     * @return
+     */
+    public static int getHistoryStoreMaxSize() {
+        return m_historyStoreMaxSize;
+    }
+
+    /**
+     * Is the TPS based block placer throttle enabled
+     *
+     * @return
+     */
+    public static boolean isThrottleEnabled() {
+        return m_throttleEnabled;
+    }
+
+    /**
+     * TPS below which the block placer backs off
+     *
+     * @return
+     */
+    public static double getThrottleTpsLow() {
+        return m_throttleTpsLow;
+    }
+
+    /**
+     * TPS above which the block placer speeds up
+     *
+     * @return
+     */
+    public static double getThrottleTpsHigh() {
+        return m_throttleTpsHigh;
+    }
+
+    /**
+     * Minimum block placer speed factor
+     *
+     * @return
+     */
+    public static double getThrottleMinSpeed() {
+        return m_throttleMinSpeed;
+    }
+
+    /**
+     * Maximum block placer speed factor
+     *
+     * @return
+     */
+    public static double getThrottleMaxSpeed() {
+        return m_throttleMaxSpeed;
+    }
+
     /**
      * Is PlotMe Fix enabled?
      * 
@@ -275,11 +703,16 @@ public class ConfigProvider {
         m_isTalkative = mainSection.getBoolean("talkative", true);
         m_defaultMode = mainSection.getBoolean("defaultOn", true);
         m_physicsFreez = mainSection.getBoolean("physicsFreez", true);
+        m_physicsFreezMode = parseFreezMode(mainSection.getString("physicsFreezMode", "block"));
+        m_physicsSettle = mainSection.getBoolean("physicsSettle", false);
+        m_physicsSettleBudget = Math.max(1, mainSection.getInt("physicsSettleBudget", 2));
         m_plotMeFixEnabled = mainSection.getBoolean("plotMeFixEnabled", true);
         m_cleanOnLogout = mainSection.getBoolean("cleanOnLogout", true);
         m_useBarAPI = mainSection.getBoolean("use-barapi");
 
         parseRenderSection(mainSection);
+        parseThrottleSection(mainSection.getConfigurationSection("throttle"));
+        parseHistorySection(mainSection.getConfigurationSection("history"));
         parseBlocksHubSection(mainSection.getConfigurationSection("blocksHub"));
 
         m_allowedOperations = parseOperationsSection(mainSection);
@@ -309,23 +742,132 @@ public class ConfigProvider {
             m_blocksCnt = 1000;
             m_vipBlocksCnt = 1000;
             m_interval = 15;
+            m_timeBudget = 0;
+            m_coalesceWrites = false;
+            m_skipNoOpWrites = false;
             m_queueTalkInterval = 10;
             m_queueHardLimit = 500000;
             m_queueSoftLimit = 250000;
             m_queueMaxSize = 10000000;
+            m_queueWaitTimeout = 0;
+            m_queuePersistent = false;
+            m_readBudget = 5;
+            m_overlaySize = 1000000;
         } else {
             m_blocksCnt = renderSection.getInt("blocks", 1000);
             m_vipBlocksCnt = renderSection.getInt("blocks-vip", 1000);
             m_interval = renderSection.getInt("interval", 15);
+            m_timeBudget = renderSection.getInt("time-budget", 0);
+            m_coalesceWrites = renderSection.getBoolean("coalesce-writes", false);
+            m_skipNoOpWrites = renderSection.getBoolean("skip-noop-writes", false);
             m_queueTalkInterval = renderSection.getInt("talk-interval", 10);
             m_queueSoftLimit = renderSection.getInt("queue-limit-soft", 250000);
             m_queueHardLimit = renderSection.getInt("queue-limit-hard", 500000);
             m_queueMaxSize = renderSection.getInt("queue-max-size", 10000000);
+            m_queueWaitTimeout = Math.max(0, renderSection.getInt("queue-wait-timeout", 0));
+            m_queuePersistent = renderSection.getBoolean("persist-queue", false);
+            m_readBudget = Math.max(0, renderSection.getInt("read-budget", 5));
+            m_overlaySize = Math.max(0, renderSection.getInt("overlay-size", 1000000));
 
             if (m_queueMaxSize <= 0) {
                 PluginMain.log("Warinig: Block queue is disabled!");
             }
         }
+
+        parseSchedulerSection(renderSection != null ? renderSection.getConfigurationSection("scheduler") : null);
+        parseLanesSection(renderSection != null ? renderSection.getConfigurationSection("lanes") : null);
+        parseSpillSection(renderSection != null ? renderSection.getConfigurationSection("spill") : null);
+        parseJournalSection(renderSection != null ? renderSection.getConfigurationSection("journal") : null);
+        parseSnapshotSection(renderSection != null ? renderSection.getConfigurationSection("snapshot") : null);
+    }
+
+    /**
+     * Parse the chunk snapshot reads section
+     *
+     * @param snapshotSection
+     */
+    private static void parseSnapshotSection(ConfigurationSection snapshotSection) {
+        if (snapshotSection == null) {
+            m_snapshotCacheSize = 256;
+            m_snapshotPrefetch = 1;
+        } else {
+            m_snapshotCacheSize = Math.max(0, snapshotSection.getInt("cache-size", 256));
+            m_snapshotPrefetch = Math.max(0, snapshotSection.getInt("prefetch", 1));
+        }
+    }
+
+    /**
+     * Parse the placement journal section
+     *
+     * @param journalSection
+     */
+    private static void parseJournalSection(ConfigurationSection journalSection) {
+        if (journalSection == null) {
+            m_journalEnabled = false;
+            m_journalSyncInterval = 1000;
+        } else {
+            m_journalEnabled = journalSection.getBoolean("enabled", false);
+            m_journalSyncInterval = Math.max(0, journalSection.getInt("sync-interval", 1000));
+        }
+    }
+
+    /**
+     * Parse the queue disk spill section
+     *
+     * @param spillSection
+     */
+    private static void parseSpillSection(ConfigurationSection spillSection) {
+        if (spillSection == null) {
+            m_spillEnabled = false;
+            m_spillThreshold = 200000;
+        } else {
+            m_spillEnabled = spillSection.getBoolean("enabled", false);
+            m_spillThreshold = Math.max(0, spillSection.getInt("threshold", 200000));
+        }
+
+        //The hard limit counts only the memory blocks, the queue has to
+        //spill before it is locked
+        if (m_spillEnabled && m_spillThreshold >= m_queueSoftLimit) {
+            PluginMain.log("Warinig: spill threshold is above the queue soft limit, using "
+                    + (m_queueSoftLimit / 2) + ".");
+            m_spillThreshold = m_queueSoftLimit / 2;
+        }
+    }
+
+    /**
+     * Parse the player queue lanes section
+     *
+     * @param lanesSection
+     */
+    private static void parseLanesSection(ConfigurationSection lanesSection) {
+        if (lanesSection == null) {
+            m_interactiveJobSize = 10000;
+            m_laneAging = 10;
+        } else {
+            m_interactiveJobSize = Math.max(0, lanesSection.getInt("interactive-size", 10000));
+            m_laneAging = Math.max(0, lanesSection.getInt("aging", 10));
+        }
+    }
+
+    /**
+     * Parse the block placer scheduler section
+     *
+     * @param schedulerSection
+     */
+    private static void parseSchedulerSection(ConfigurationSection schedulerSection) {
+        if (schedulerSection == null) {
+            m_schedulerQuantum = 100;
+            m_weight = 1;
+            m_vipWeight = 2;
+            m_bypassWeight = 4;
+            m_consoleWeight = 4;
+        } else {
+            m_schedulerQuantum = Math.max(1, schedulerSection.getInt("quantum", 100));
+            m_weight = Math.max(0, schedulerSection.getInt("weight", 1));
+            m_vipWeight = Math.max(0, schedulerSection.getInt("weight-vip", 2));
+            m_bypassWeight = Math.max(0, schedulerSection.getInt("weight-bypass", 4));
+            m_consoleWeight = Math.max(0, schedulerSection.getInt("weight-console", 4));
+        }
     }
 
     /**
@@ -362,6 +904,52 @@ public class ConfigProvider {
         return result;
     }
 
+    /**
+     * Parse the block placer throttle section
+     *
+     * @param throttleSection
+     */
+    private static void parseThrottleSection(ConfigurationSection throttleSection) {
+        if (throttleSection == null) {
+            m_throttleEnabled = false;
+            m_throttleTpsLow = 17;
+            m_throttleTpsHigh = 19.5;
+            m_throttleMinSpeed = 0.1;
+            m_throttleMaxSpeed = 2;
+        } else {
+            m_throttleEnabled = throttleSection.getBoolean("enabled", false);
+            m_throttleTpsLow = throttleSection.getDouble("tps-low", 17);
+            m_throttleTpsHigh = Math.max(m_throttleTpsLow, throttleSection.getDouble("tps-high", 19.5));
+            m_throttleMinSpeed = Math.max(0.01, throttleSection.getDouble("speed-min", 0.1));
+            m_throttleMaxSpeed = Math.max(m_throttleMinSpeed, throttleSection.getDouble("speed-max", 2));
+        }
+    }
+
+    /**
+     * Parse the undo history section
+     *
+     * @param historySection
+     */
+    private static void parseHistorySection(ConfigurationSection historySection) {
+        ConfigurationSection storeSection = null;
+        if (historySection == null) {
+            m_compactHistory = false;
+        } else {
+            m_compactHistory = historySection.getBoolean("compact", false);
+            storeSection = historySection.getConfigurationSection("store");
+        }
+
+        if (storeSection == null) {
+            m_historyStore = false;
+            m_historyStoreKeep = 3;
+            m_historyStoreMaxSize = 1000000;
+        } else {
+            m_historyStore = storeSection.getBoolean("enabled", false);
+            m_historyStoreKeep = Math.max(0, storeSection.getInt("keep", 3));
+            m_historyStoreMaxSize = Math.max(1, storeSection.getInt("max-size", 1000000));
+        }
+    }
+
     /**
      * Initialize blocks hub configuration
      * @param bhSection 
@@ -371,9 +959,55 @@ public class ConfigProvider {
         {
             m_logBlocks = true;
             m_checkAccess = false;
+            m_accessCache = false;
+            m_accessCacheTtl = 30;
+            m_asyncLog = false;
+            m_logBufferSize = 65536;
+            m_logFlushInterval = 5;
+            m_logOverflow = BlocksHubLogger.OverflowPolicy.Sync;
         } else {
             m_logBlocks = bhSection.getBoolean("logBlocks", true);
             m_checkAccess = bhSection.getBoolean("checkAccess", false);
+            m_accessCache = bhSection.getBoolean("accessCache", false);
+            m_accessCacheTtl = Math.max(0, bhSection.getInt("accessCacheTtl", 30));
+            m_asyncLog = bhSection.getBoolean("asyncLog", false);
+            m_logBufferSize = Math.max(1, bhSection.getInt("logBuffer", 65536));
+            m_logFlushInterval = Math.max(1, bhSection.getInt("logFlushInterval", 5));
+            m_logOverflow = parseOverflowPolicy(bhSection.getString("logOverflow", "sync"));
+        }
+    }
+
+    /**
+     * Parse the physics freeze mode
+     *
+     * @param mode
+     * @return
+     */
+    private static PhysicsWatch.FreezeMode parseFreezMode(String mode) {
+        for (PhysicsWatch.FreezeMode m : PhysicsWatch.FreezeMode.values()) {
+            if (m.name().equalsIgnoreCase(mode)) {
+                return m;
+            }
         }
+
+        PluginMain.log("Unknown physicsFreezMode: " + mode);
+        return PhysicsWatch.FreezeMode.Block;
+    }
+
+    /**
+     * Parse the block log overflow policy
+     *
+     * @param policy
+     * @return
+     */
+    private static BlocksHubLogger.OverflowPolicy parseOverflowPolicy(String policy) {
+        for (BlocksHubLogger.OverflowPolicy p : BlocksHubLogger.OverflowPolicy.values()) {
+            if (p.name().equalsIgnoreCase(policy)) {
+                return p;
+            }
+        }
+
+        PluginMain.log("Unknown logOverflow policy: " + policy);
+        return BlocksHubLogger.OverflowPolicy.Sync;
     }
 }
\ No newline at end of file
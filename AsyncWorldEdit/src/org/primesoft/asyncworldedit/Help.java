@@ -41,6 +41,7 @@ public final class Help {
         ChatColor.BLUE + "Purge" + ChatColor.WHITE + " - remove all queued block operations",
         ChatColor.BLUE + "Toggle" + ChatColor.WHITE + " - toggle AsyncWorldEdit on/off",
         ChatColor.BLUE + "Reload" + ChatColor.WHITE + " - reload configuration",
+        ChatColor.BLUE + "Journal" + ChatColor.WHITE + " - recover unfinished jobs",
         ChatColor.YELLOW + "To display help on command use: " + ChatColor.BLUE + "/Help <command>"
     };
     private final static String[] HelpToggle = new String[]{
@@ -65,6 +66,12 @@ public final class Help {
         ChatColor.YELLOW + "Cancel " + ChatColor.WHITE + " - cancel queued job",        
         ChatColor.BLUE + " Cancel #id" + ChatColor.WHITE + " - cancel your job",
         ChatColor.BLUE + " Cancel <u:playerName> #id" + ChatColor.WHITE + " - cancel other player job",};
+    private final static String[] HelpJournal = new String[]{
+        ChatColor.YELLOW + "Journal " + ChatColor.WHITE + " - recover jobs left unfinished by a server crash",
+        ChatColor.BLUE + " Journal" + ChatColor.WHITE + " - displays the unfinished jobs",
+        ChatColor.BLUE + " Journal rollback" + ChatColor.WHITE + " - restores the blocks changed by the unfinished jobs",
+        ChatColor.BLUE + " Journal forward" + ChatColor.WHITE + " - places the journaled blocks again",
+        ChatColor.BLUE + " Journal discard" + ChatColor.WHITE + " - removes the journal",};
     private final static String[] HelpReload = new String[]{
         ChatColor.YELLOW + "Reload " + ChatColor.WHITE + " - Reload AWE configuration file",};
 
@@ -82,6 +89,8 @@ public final class Help {
                 help = HelpReload;
             } else if (command.equalsIgnoreCase(Commands.COMMAND_CANCEL)) {
                 help = HelpCancel;
+            } else if (command.equalsIgnoreCase(Commands.COMMAND_JOURNAL)) {
+                help = HelpJournal;
             }
         }
 
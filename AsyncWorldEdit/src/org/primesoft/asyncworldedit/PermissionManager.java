@@ -44,7 +44,8 @@ public class PermissionManager {
         Mode_Change, Mode_On, Mode_Off,
         Mode_Change_Other,
         TalkativeQueue, ProgressBar,
-        IgnoreCleanup
+        IgnoreCleanup,
+        Journal
     }
     /**
      * Plugin permissions top node
@@ -103,6 +104,8 @@ public class PermissionManager {
                 return s_prefix + "admin.queue-bypass";
             case IgnoreCleanup:
                 return s_prefix + "admin.noCleanupOnQuit";
+            case Journal:
+                return s_prefix + "admin.journal";
             case QueueVip:
                 return s_prefix + "user.vip-queue";
             case Mode_Change:
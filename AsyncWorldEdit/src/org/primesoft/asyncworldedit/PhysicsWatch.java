@@ -24,12 +24,16 @@
 package org.primesoft.asyncworldedit;
 
 import com.sk89q.worldedit.Vector;
-import java.util.HashMap;
-import org.bukkit.Location;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.bukkit.block.Block;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.*;
+import org.primesoft.asyncworldedit.utils.BoundingBox;
+import org.primesoft.asyncworldedit.utils.Histogram;
+import org.primesoft.asyncworldedit.utils.LocationIndex;
 
 /**
  * This class is responsible for freezing all physics in edited regions
@@ -38,19 +42,55 @@ import org.bukkit.event.block.*;
  */
 public class PhysicsWatch implements Listener {
 
+    /**
+     * How the queued blocks are frozen
+     */
+    public enum FreezeMode {
+
+        /**
+         * Each queued block is registered
+         */
+        Block,
+        /**
+         * Job bounding boxes are registered, blocks without a job are
+         * registered one by one
+         */
+        Box
+    }
+
+    /**
+     * Check the time of one in this many events
+     */
+    private final static int SAMPLE_MASK = 63;
+
     /**
      * Is physics watch enabled
      */
-    private boolean m_isEnabled;
+    private volatile boolean m_isEnabled;
+    /**
+     * Locked locations (per world), the event checks do not lock
+     */
+    private final ConcurrentHashMap<String, LocationIndex> m_locked;
+
     /**
-     * MTA mutex
+     * Locked regions (per world)
      */
-    private final Object m_mutex;
-    private final HashMap<String, HashMap<Integer, HashMap<Integer, HashMap<Integer, Integer>>>> m_locked;
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<BoundingBox>> m_regions;
+
+    /**
+     * Sampled event check time
+     */
+    private final Histogram m_checkTime;
+
+    /**
+     * Number of event checks (main thread only)
+     */
+    private int m_checks;
 
     public PhysicsWatch() {
-        m_mutex = new Object();
-        m_locked = new HashMap<String, HashMap<Integer, HashMap<Integer, HashMap<Integer, Integer>>>>();
+        m_locked = new ConcurrentHashMap<String, LocationIndex>();
+        m_regions = new ConcurrentHashMap<String, CopyOnWriteArrayList<BoundingBox>>();
+        m_checkTime = new Histogram();
     }
     
     public void Enable()
@@ -62,133 +102,144 @@ public class PhysicsWatch implements Listener {
     public void Disable()
     {
         m_isEnabled = false;
-        synchronized (m_mutex)
-        {
-            m_locked.clear();
-        }
+        m_locked.clear();
+        m_regions.clear();
     }
-    
 
-    public void addLocation(String name, Vector location) {        
-        int x = location.getBlockX();
-        int y = location.getBlockY();
-        int z = location.getBlockZ();
-
-        synchronized (m_mutex) {
-            if (!m_isEnabled)
-            {
-                return;
-            }
-            
-            HashMap<Integer, HashMap<Integer, HashMap<Integer, Integer>>> xhash;
-            if (!m_locked.containsKey(name)) {
-                xhash = new HashMap<Integer, HashMap<Integer, HashMap<Integer, Integer>>>();
-                m_locked.put(name, xhash);
-            } else {
-                xhash = m_locked.get(name);
-            }
+    /**
+     * Is physics watch enabled
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return m_isEnabled;
+    }
 
-            HashMap<Integer, HashMap<Integer, Integer>> yhash;
-            if (!xhash.containsKey(x)) {
-                yhash = new HashMap<Integer, HashMap<Integer, Integer>>();
-                xhash.put(x, yhash);
-            } else {
-                yhash = xhash.get(x);
-            }
+    /**
+     * Sampled event check time
+     *
+     * @return
+     */
+    public Histogram getCheckTime() {
+        return m_checkTime;
+    }
 
-            HashMap<Integer, Integer> zhash;
-            if (!yhash.containsKey(y)) {
-                zhash = new HashMap<Integer, Integer>();
-                yhash.put(y, zhash);
-            } else {
-                zhash = yhash.get(y);
-            }
+    /**
+     * Freeze the physics in the region, the box can by grown after it was
+     * added
+     *
+     * @param name world name
+     * @param box
+     */
+    public void addRegion(String name, BoundingBox box) {
+        if (!m_isEnabled) {
+            return;
+        }
 
-            if (!zhash.containsKey(z)) {
-                zhash.put(z, 1);
-            } else {
-                zhash.put(z, zhash.get(z) + 1);
+        CopyOnWriteArrayList<BoundingBox> regions = m_regions.get(name);
+        if (regions == null) {
+            CopyOnWriteArrayList<BoundingBox> newRegions = new CopyOnWriteArrayList<BoundingBox>();
+            regions = m_regions.putIfAbsent(name, newRegions);
+            if (regions == null) {
+                regions = newRegions;
             }
         }
+        regions.add(box);
     }
 
-    public void removeLocation(String name, Vector location) {
-        int x = location.getBlockX();
-        int y = location.getBlockY();
-        int z = location.getBlockZ();
-
-               
-        synchronized (m_mutex) {
-            if (!m_isEnabled)
-            {
-                return;
-            }
-            
-            if (!m_locked.containsKey(name)) {
-                return;
-            }
-            HashMap<Integer, HashMap<Integer, HashMap<Integer, Integer>>> xhash = m_locked.get(name);
-
-            if (!xhash.containsKey(x)) {
-                return;
-            }
-            HashMap<Integer, HashMap<Integer, Integer>> yhash = xhash.get(x);
+    /**
+     * Release the region physics freeze
+     *
+     * @param name world name
+     * @param box
+     */
+    public void removeRegion(String name, BoundingBox box) {
+        CopyOnWriteArrayList<BoundingBox> regions = m_regions.get(name);
+        if (regions != null) {
+            regions.remove(box);
+        }
+    }
+    
 
+    public void addLocation(String name, Vector location) {        
+        addLocation(name, location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
 
-            if (!yhash.containsKey(y)) {
-                return;
+    public void addLocation(String name, int x, int y, int z) {
+        if (!m_isEnabled)
+        {
+            return;
+        }
+            
+        LocationIndex index = m_locked.get(name);
+        if (index == null) {
+            LocationIndex newIndex = new LocationIndex();
+            index = m_locked.putIfAbsent(name, newIndex);
+            if (index == null) {
+                index = newIndex;
             }
-            HashMap<Integer, Integer> zhash = yhash.get(y);
+        }
 
-            Integer val = zhash.get(z);
-            if (val == null) {
-                return;
-            }
+        index.add(x, y, z);
+    }
 
-            val = val - 1;
-            zhash.remove(z);
-            if (val != 0) {
-                zhash.put(z, val);
-            }
+    public void removeLocation(String name, Vector location) {
+        removeLocation(name, location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    /**
+     * Remove the location, this is done also when the physics watch is
+     * disabled so locations added while it was disabling are released.
+     */
+    public void removeLocation(String name, int x, int y, int z) {
+        LocationIndex index = m_locked.get(name);
+        if (index == null) {
+            return;
         }
+
+        index.remove(x, y, z);
     }
 
     /**
      * Perform test if block event shuld by canceled
      */
     private boolean shuldCancel(Block block) {
-        Location location = block.getLocation();
-        String name = location.getWorld().getName();
-        int x = location.getBlockX();
-        int y = location.getBlockY();
-        int z = location.getBlockZ();
-        final int delta = 1;
-                
-        synchronized (m_mutex) {
-            if (!m_locked.containsKey(name)) {
-                return false;
-            }
+        if ((++m_checks & SAMPLE_MASK) != 0) {
+            return doShuldCancel(block);
+        }
+
+        final long start = System.nanoTime();
+        final boolean result = doShuldCancel(block);
+        m_checkTime.record(System.nanoTime() - start);
+        return result;
+    }
 
-            HashMap<Integer, HashMap<Integer, HashMap<Integer, Integer>>> xhash = m_locked.get(name);
-            for (int px = x - delta; px <= x + delta; px++) {
-                if (xhash.containsKey(px)) {
-                    HashMap<Integer, HashMap<Integer, Integer>> yhash = xhash.get(px);
-
-                    for (int py = y - delta; py <= y + delta; py++) {
-                        if (yhash.containsKey(py)) {
-                            HashMap<Integer, Integer> zhash = yhash.get(py);
-
-                            for (int pz = z - delta; pz <= z + delta; pz++) {
-                                if (zhash.containsKey(pz)) {
-                                    return true;
-                                }
-                            }
-                        }
-                    }
+    /**
+     * Perform test if block event shuld by canceled, this method does not
+     * lock
+     */
+    private boolean doShuldCancel(Block block) {
+        String name = block.getWorld().getName();
+        final int delta = 1;
+        final int x = block.getX();
+        final int y = block.getY();
+        final int z = block.getZ();
+
+        List<BoundingBox> regions = m_regions.get(name);
+        if (regions != null) {
+            for (BoundingBox box : regions) {
+                if (box.contains(x, y, z, delta)) {
+                    return true;
                 }
             }
         }
-        return false;
+
+        LocationIndex index = m_locked.get(name);
+        if (index == null) {
+            return false;
+        }
+
+        return index.containsNear(x, y, z, delta);
     }
 
     @EventHandler
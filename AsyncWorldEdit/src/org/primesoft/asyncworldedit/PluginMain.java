@@ -37,8 +37,12 @@ import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.primesoft.asyncworldedit.blockPlacer.BlockPlacer;
+import org.primesoft.asyncworldedit.blockPlacer.JournalRecovery;
+import org.primesoft.asyncworldedit.blockPlacer.PlacementJournal;
+import org.primesoft.asyncworldedit.blockPlacer.QueueStore;
 import org.primesoft.asyncworldedit.commands.*;
 import org.primesoft.asyncworldedit.mcstats.MetricsLite;
+import org.primesoft.asyncworldedit.worldedit.HistoryStore;
 import org.primesoft.asyncworldedit.worldedit.WorldeditIntegrator;
 
 /**
@@ -58,6 +62,9 @@ public class PluginMain extends JavaPlugin {
     private EventListener m_listener = new EventListener(this);
     private PhysicsWatch m_physicsWatcher = new PhysicsWatch();
     private BlockPlacer m_blockPlacer;
+    private PlacementJournal m_journal;
+    private HistoryStore m_historyStore;
+    private JournalRecovery m_journalRecovery;
     private WorldeditIntegrator m_weIntegrator;
     private PlotMeFix m_plotMeFix;
     private PlayerManager m_playerManager = new PlayerManager(this);
@@ -78,6 +85,18 @@ public class PluginMain extends JavaPlugin {
     public BlockPlacer getBlockPlacer() {
         return m_blockPlacer;
     }
+
+    public PlacementJournal getJournal() {
+        return m_journal;
+    }
+
+    public HistoryStore getHistoryStore() {
+        return m_historyStore;
+    }
+
+    public JournalRecovery getJournalRecovery() {
+        return m_journalRecovery;
+    }
     
     public BarAPIntegrator getBarAPI() {    
         return m_barApi;
@@ -158,6 +177,13 @@ public class PluginMain extends JavaPlugin {
 
         m_barApi = new BarAPIntegrator(this);
         m_blocksHub = new BlocksHubIntegration(this);
+        m_journalRecovery = JournalRecovery.load();
+        m_journal = ConfigProvider.isJournalEnabled()
+                ? PlacementJournal.open(ConfigProvider.getJournalSyncInterval()) : null;
+        HistoryStore.cleanup();
+        m_historyStore = ConfigProvider.isHistoryStoreEnabled()
+                ? new HistoryStore(ConfigProvider.getHistoryStoreKeep(),
+                        ConfigProvider.getHistoryStoreMaxSize()) : null;
         m_blockPlacer = new BlockPlacer(this);
         m_plotMeFix = new PlotMeFix(this);
 
@@ -169,6 +195,9 @@ public class PluginMain extends JavaPlugin {
         }
 
         m_weIntegrator = new WorldeditIntegrator(this, worldEdit);
+        if (ConfigProvider.isQueuePersistent()) {
+            QueueStore.restore(this, m_weIntegrator);
+        }
         
         if (ConfigProvider.isPhysicsFreezEnabled()) {
             m_physicsWatcher.Enable();
@@ -189,7 +218,17 @@ public class PluginMain extends JavaPlugin {
     @Override
     public void onDisable() {
         m_blockPlacer.stop();
+        m_blocksHub.stop();
+        if (ConfigProvider.isQueuePersistent()) {
+            QueueStore.save(m_blockPlacer);
+        }
+        if (m_journal != null) {
+            m_journal.close(ConfigProvider.isQueuePersistent());
+        }
         m_weIntegrator.queueStop();
+        if (m_historyStore != null) {
+            m_historyStore.stop();
+        }
         log("Disabled");
     }
 
@@ -221,6 +260,9 @@ public class PluginMain extends JavaPlugin {
         } else if (name.equalsIgnoreCase(Commands.COMMAND_TOGGLE)) {
             doToggle(player, args);
             return true;
+        } else if (name.equalsIgnoreCase(Commands.COMMAND_JOURNAL)) {
+            doJournal(player, args);
+            return true;
         }
 
         return Help.ShowHelp(player, null);
@@ -293,6 +335,15 @@ public class PluginMain extends JavaPlugin {
         CancelCommand.Execte(this, player, args);
     }
 
+    private void doJournal(Player player, String[] args) {
+        if (!m_isInitialized) {
+            say(player, ChatColor.RED + "Module not initialized, contact administrator.");
+            return;
+        }
+
+        JournalCommand.Execte(this, player, args);
+    }
+
     /**
      * Get instance of the world edit plugin
      *
@@ -23,7 +23,13 @@
  */
 package org.primesoft.asyncworldedit.blockPlacer;
 
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.bukkit.ChatColor;
 import org.bukkit.World;
 import org.bukkit.command.defaults.PlaySoundCommand;
@@ -35,6 +41,8 @@ import org.primesoft.asyncworldedit.ConfigProvider;
 import org.primesoft.asyncworldedit.PermissionManager;
 import org.primesoft.asyncworldedit.PhysicsWatch;
 import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.worldedit.AsyncEditSession;
+import org.primesoft.asyncworldedit.worldedit.JobContext;
 
 /**
  *
@@ -43,18 +51,42 @@ import org.primesoft.asyncworldedit.PluginMain;
 public class BlockPlacer implements Runnable {
 
     /**
-     * Maximum number of retries
+     * Number of idle runs before the get task is stopped
      */
     private final int MAX_RETRIES = 200;
+    /**
+     * Number of nanoseconds in one millisecond
+     */
+    private final static long NANOS_PER_MS = 1000000;
+    /**
+     * Size of the first round when placing blocks in time budget mode
+     */
+    private final static int MIN_ROUND_SIZE = 100;
+    /**
+     * Number of samples used in the entry cost AVG
+     */
+    private final static int COST_SAMPLES = 5;
     /**
      * MTA mutex
      */
     private final Object m_mutex = new Object();
+    /**
+     * Locked queues monitor, the job producers wait on this monitor
+     */
+    private final Object m_queueMonitor = new Object();
+    /**
+     * Maximum time slice a producer waits before checking the job state
+     */
+    private final static long QUEUE_WAIT_SLICE = 250;
 
     /**
      * The physics watcher
      */
     private final PhysicsWatch m_physicsWatcher;
+    /**
+     * The placement journal (null if disabled)
+     */
+    private final PlacementJournal m_journal;
     /**
      * Bukkit scheduler
      */
@@ -76,15 +108,23 @@ public class BlockPlacer implements Runnable {
     /**
      * Logged events queue (per player)
      */
-    private HashMap<String, PlayerEntry> m_blocks;
+    private final ConcurrentHashMap<String, PlayerEntry> m_blocks;
     /**
      * Get blocks requests
      */
-    private final List<BlockPlacerGetBlockEntry> m_getBlocks = new ArrayList<BlockPlacerGetBlockEntry>();
+    private final ReadService m_readService = new ReadService();
     /**
      * All locked queues
      */
-    private HashSet<String> m_lockedQueues;
+    private final Set<String> m_lockedQueues;
+    /**
+     * Number of blocks in all player queues
+     */
+    private final AtomicInteger m_queueSize;
+    /**
+     * Number of blocks stored in all player spill files
+     */
+    private final AtomicInteger m_spilledSize;
     /**
      * Should block places shut down
      */
@@ -118,6 +158,26 @@ public class BlockPlacer implements Runnable {
      * Last run time
      */
     private long m_lastRunTime;
+    /**
+     * Average entry placing cost (ns)
+     */
+    private long m_entryCost;
+    /**
+     * Time budget of the last run (ns)
+     */
+    private long m_lastRunBudget;
+    /**
+     * Time used by the last run (ns)
+     */
+    private long m_lastRunTimeUsed;
+    /**
+     * Number of entries processed in the last run
+     */
+    private int m_lastRunEntries;
+    /**
+     * Time spent by the last run on fetching the entries (ns)
+     */
+    private long m_lastRunFetchTime;
     /**
      * The main thread
      */
@@ -136,6 +196,20 @@ public class BlockPlacer implements Runnable {
      * Parent plugin main
      */
     private final PluginMain m_plugin;
+
+    /**
+     * The block placer scheduler
+     */
+    private final IBlockPlacerScheduler m_placerScheduler;
+
+    /**
+     * The TPS based throttle
+     */
+    private final BlockPlacerThrottle m_throttle;
+    /**
+     * The physics update of finished jobs
+     */
+    private final PhysicsSettler m_physicsSettler;
    
 
     /**
@@ -157,14 +231,20 @@ public class BlockPlacer implements Runnable {
         m_jobAddedListeners = new ArrayList<IBlockPlacerListener>();
         m_lastRunTime = System.currentTimeMillis();
         m_runNumber = 0;
-        m_blocks = new HashMap<String, PlayerEntry>();
-        m_lockedQueues = new HashSet<String>();
+        m_blocks = new ConcurrentHashMap<String, PlayerEntry>();
+        m_lockedQueues = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        m_queueSize = new AtomicInteger();
+        m_spilledSize = new AtomicInteger();
+        SpillFile.cleanup();
         m_scheduler = plugin.getServer().getScheduler();
         m_barAPI = plugin.getBarAPI();
         m_interval = ConfigProvider.getInterval();
         m_task = m_scheduler.runTaskTimer(plugin, this,
                 m_interval, m_interval);
         m_plugin = plugin;
+        m_throttle = new BlockPlacerThrottle(plugin);
+        m_physicsSettler = new PhysicsSettler(plugin);
+        m_placerScheduler = new FairScheduler();
 
         startGetTask();
 
@@ -173,6 +253,7 @@ public class BlockPlacer implements Runnable {
         m_queueSoftLimit = ConfigProvider.getQueueSoftLimit();
         m_queueMaxSize = ConfigProvider.getQueueMaxSize();
         m_physicsWatcher = plugin.getPhysicsWatcher();
+        m_journal = plugin.getJournal();
     }
 
     private void startGetTask() {
@@ -218,28 +299,8 @@ public class BlockPlacer implements Runnable {
      * Process the get requests
      */
     public void processGet() {
-        boolean run = true;
-        boolean processed = false;
-        for (int i = 0; i < MAX_RETRIES && run; i++) {
-            final BlockPlacerGetBlockEntry[] tasks;
-            synchronized (m_getBlocks) {
-                tasks = m_getBlocks.toArray(new BlockPlacerGetBlockEntry[0]);
-                m_getBlocks.clear();
-            }
-
-            for (BlockPlacerGetBlockEntry t : tasks) {
-                t.Process(this);
-            }
-            if (tasks.length > 0) {
-                processed = true;
-                run = true;
-                try {
-                    //Force thread release!
-                    Thread.sleep(1);
-                } catch (InterruptedException ex) {
-                }
-            }
-        }
+        final boolean processed = m_readService.process(
+                ConfigProvider.getReadBudget() * NANOS_PER_MS) > 0;
 
         if (!processed) {
             synchronized (m_mutex) {
@@ -259,26 +320,67 @@ public class BlockPlacer implements Runnable {
     public void run() {
         m_mainThread = Thread.currentThread();
 
-        long now = System.currentTimeMillis();
-        List<BlockPlacerEntry> entries = new ArrayList<BlockPlacerEntry>(ConfigProvider.getBlockCount() + ConfigProvider.getVipBlockCount());
-        boolean added = false;
-        boolean retry = true;
+        final long now = System.currentTimeMillis();
+        final long runStart = System.nanoTime();
+
+        m_throttle.update();
+        final boolean lagging = m_throttle.isLagging();
+        final long budget = m_throttle.scale(ConfigProvider.getTimeBudget() * NANOS_PER_MS);
+        final int blockCount = m_throttle.scale(ConfigProvider.getBlockCount());
+        final int blockCountVip = m_throttle.scale(ConfigProvider.getVipBlockCount());
+
+        final List<BlockPlacerEntry> entries = new ArrayList<BlockPlacerEntry>(blockCount + blockCountVip);
         final List<BlockPlacerJobEntry> jobsToCancel = new ArrayList<BlockPlacerJobEntry>();
+        final boolean hasVips;
+        boolean added;
+        boolean anyAdded = false;
+        int entriesPlaced = 0;
+        long used = 0;
+        long fetchTime = 0;
+
+        hasVips = updateWeights(lagging);
+        final int totalCount = blockCount + (hasVips ? blockCountVip : 0);
+
+        do {
+            int roundCount = totalCount;
+            if (budget > 0) {
+                roundCount = getRoundSize(budget - used, totalCount);
+            }
 
-        synchronized (this) {
+            entries.clear();
+            final long fetchStart = System.nanoTime();
             final String[] keys = m_blocks.keySet().toArray(new String[0]);
 
-            final HashSet<String> vips = getVips(keys);
-            final String[] vipKeys = vips.toArray(new String[0]);
+            added = m_placerScheduler.fetchBlocks(this, roundCount, keys, entries, jobsToCancel);
+            if (m_journal != null) {
+                m_journal.record(this, entries);
+            }
+
+            final long roundStart = System.nanoTime();
+            fetchTime += roundStart - fetchStart;
+            int roundEntries = 0;
+            for (BlockPlacerEntry entry : entries) {
+                if (entry != null) {
+                    entry.Process(this);
+                    roundEntries += entry.getSize();
+                }
+            }
+            final long roundEnd = System.nanoTime();
 
-            final int blockCount = ConfigProvider.getBlockCount();
-            final int blockCountVip = ConfigProvider.getVipBlockCount();
-            final HashMap<String, Integer> blocksPlaced = new HashMap<String, Integer>();
+            if (roundEntries > 0) {
+                updateEntryCost(roundEnd - roundStart, roundEntries);
+            }
+            entriesPlaced += roundEntries;
+            anyAdded |= added;
+            used = roundEnd - runStart;
+        } while (budget > 0 && added && used < budget);
 
-            added |= fetchBlocks(blockCount, keys, entries, blocksPlaced, jobsToCancel);
-            added |= fetchBlocks(blockCountVip, vipKeys, entries, blocksPlaced, jobsToCancel);
+        if (m_journal != null) {
+            m_journal.flush();
+        }
 
-            if (!added && m_shutdown) {
+        synchronized (this) {
+            if (!anyAdded && m_shutdown) {
                 stop();
             }
 
@@ -293,13 +395,13 @@ public class BlockPlacer implements Runnable {
             for (Map.Entry<String, PlayerEntry> queueEntry : m_blocks.entrySet()) {
                 String player = queueEntry.getKey();
                 PlayerEntry entry = queueEntry.getValue();
-                Integer cnt = blocksPlaced.get(player);
 
-                entry.updateSpeed(cnt != null ? cnt : 0, timeDelte);
+                entry.updateSpeed(entry.getPlaced(), timeDelte);
+                entry.resetPlaced();
 
                 final Player p = PluginMain.getPlayer(player);
                 boolean bypass = PermissionManager.isAllowed(p, PermissionManager.Perms.QueueBypass);
-                if (entry.getQueue().isEmpty()) {
+                if (entry.getQueueSize() == 0) {
                     if (PermissionManager.isAllowed(p, PermissionManager.Perms.ProgressBar)) {
                         m_barAPI.disableMessage(p);
                     }
@@ -316,100 +418,201 @@ public class BlockPlacer implements Runnable {
             }
         }
 
-        for (BlockPlacerEntry entry : entries) {
-            if (entry != null) {
-                entry.Process(this);
-            }
-        }
-
         for (BlockPlacerJobEntry job : jobsToCancel) {
             job.setStatus(BlockPlacerJobEntry.JobStatus.Done);
             onJobRemoved(job);
         }
 
+        m_lastRunBudget = budget;
+        m_lastRunTimeUsed = System.nanoTime() - runStart;
+        m_lastRunEntries = entriesPlaced;
+        m_lastRunFetchTime = fetchTime;
         m_lastRunTime = now;
+
+        updateInterval();
+    }
+
+    /**
+     * Reschedule the block placer task if the throttle changed the interval
+     */
+    private void updateInterval() {
+        final long interval = m_throttle.getInterval(ConfigProvider.getInterval());
+        if (interval == m_interval || m_task == null || m_shutdown) {
+            return;
+        }
+
+        m_interval = interval;
+        m_task.cancel();
+        m_task = m_scheduler.runTaskTimer(m_plugin, this, m_interval, m_interval);
     }
 
     /**
-     * Fetch the blocks that are going to by placed in this run
+     * Get the TPS based throttle
      *
-     * @param blockCnt number of blocks to fetch
-     * @param playerNames list of all players
-     * @param entries destination blocks entrie
-     * @return blocks fatched
+     * @return
      */
-    private boolean fetchBlocks(final int blockCnt, final String[] playerNames,
-            List<BlockPlacerEntry> entries, final HashMap<String, Integer> blocksPlaced,
-            final List<BlockPlacerJobEntry> jobsToCancel) {
-        if (blockCnt <= 0 || playerNames == null || playerNames.length == 0) {
-            return false;
+    public BlockPlacerThrottle getThrottle() {
+        return m_throttle;
+    }
+
+    /**
+     * Get the throttle status message
+     *
+     * @return
+     */
+    public String getThrottleMessage() {
+        return m_throttle.getStatusMessage(m_interval);
+    }
+
+    /**
+     * Get the number of entries that fit into the remaining time budget
+     *
+     * @param remaining remaining time budget (ns)
+     * @param maxSize maximum round size
+     * @return number of entries to fetch
+     */
+    private int getRoundSize(long remaining, int maxSize) {
+        if (m_entryCost <= 0) {
+            return Math.min(MIN_ROUND_SIZE, maxSize);
         }
 
-        int keyPos = 0;
-        boolean added = false;
-        boolean result = false;
-        boolean gotDemanding = false;
-        final int maxRetry = playerNames.length;
-        int retry = playerNames.length;
-        for (int i = 0; i < blockCnt && retry > 0 && !gotDemanding; i += added ? 1 : 0) {
-            final String player = playerNames[keyPos];
-            PlayerEntry playerEntry = m_blocks.get(player);
-            if (playerEntry != null) {
-                Queue<BlockPlacerEntry> queue = playerEntry.getQueue();
-                synchronized (queue) {
-                    if (!queue.isEmpty()) {
-                        BlockPlacerEntry entry = queue.poll();
-                        if (entry != null) {
-                            entries.add(entry);
-
-                            added = true;
-
-                            if (blocksPlaced.containsKey(player)) {
-                                blocksPlaced.put(player, blocksPlaced.get(player) + 1);
-                            } else {
-                                blocksPlaced.put(player, 1);
-                            }
-
-                            gotDemanding |= entry.isDemanding();
-                        }
-                    } else {
-                        for (BlockPlacerJobEntry job : playerEntry.getJobs()) {
-                            BlockPlacerJobEntry.JobStatus jStatus = job.getStatus();
-                            if (jStatus == BlockPlacerJobEntry.JobStatus.Done
-                                    || jStatus == BlockPlacerJobEntry.JobStatus.Waiting) {
-                                jobsToCancel.add(job);
-                            }
-                        }
-
-                        for (BlockPlacerJobEntry job : jobsToCancel) {
-                            playerEntry.removeJob(job);
-                        }
-                    }
-                }
-                final int size = queue.size();
-                if (size < m_queueSoftLimit && m_lockedQueues.contains(player)) {
-                    PluginMain.say(player, "Your block queue is unlocked. You can use WorldEdit.");
-                    m_lockedQueues.remove(player);
-                }
-                if (size == 0 && !playerEntry.hasJobs()) {
-                    m_blocks.remove(playerNames[keyPos]);
-                    Player p = PluginMain.getPlayer(player);
-                    if (PermissionManager.isAllowed(p, PermissionManager.Perms.ProgressBar)) {
-                        m_barAPI.disableMessage(p);
-                    }
-                }
-            } else if (m_lockedQueues.contains(player)) {
-                PluginMain.say(player, "Your block queue is unlocked. You can use WorldEdit.");
-                m_lockedQueues.remove(player);
-            }
-            keyPos = (keyPos + 1) % playerNames.length;
-            if (added) {
-                retry = maxRetry;
-                result = true;
+        long result = remaining / m_entryCost;
+        return (int) Math.max(1, Math.min(result, maxSize));
+    }
+
+    /**
+     * Update the average entry placing cost
+     *
+     * @param time time spent placing entries (ns)
+     * @param count number of entries placed
+     */
+    private void updateEntryCost(long time, int count) {
+        long cost = Math.max(1, time / count);
+        if (m_entryCost <= 0) {
+            m_entryCost = cost;
+        } else {
+            m_entryCost = (m_entryCost * (COST_SAMPLES - 1) + cost) / COST_SAMPLES;
+        }
+    }
+
+    /**
+     * Time budget of the last run (0 if fixed block counts are used)
+     *
+     * @return time budget in ns
+     */
+    public long getLastRunBudget() {
+        return m_lastRunBudget;
+    }
+
+    /**
+     * Time used by the last run
+     *
+     * @return time in ns
+     */
+    public long getLastRunTimeUsed() {
+        return m_lastRunTimeUsed;
+    }
+
+    /**
+     * Number of entries processed in the last run
+     *
+     * @return
+     */
+    public int getLastRunEntries() {
+        return m_lastRunEntries;
+    }
+
+    /**
+     * Time spent by the last run on fetching the entries (ns)
+     *
+     * @return
+     */
+    public long getLastRunFetchTime() {
+        return m_lastRunFetchTime;
+    }
+
+    /**
+     * Update the scheduler weights of all players
+     *
+     * @param lagging is the server lagging (pause non vip players, the
+     * paused players get weight 0)
+     * @return true if any vip players have queued entries
+     */
+    private boolean updateWeights(boolean lagging) {
+        boolean hasVips = false;
+        for (Map.Entry<String, PlayerEntry> queueEntry : m_blocks.entrySet()) {
+            final String player = queueEntry.getKey();
+            final PlayerEntry entry = queueEntry.getValue();
+            final Player p = PluginMain.getPlayer(player);
+
+            final int weight;
+            final boolean isVip;
+            if (ConfigProvider.DEFAULT_USER.equals(player)) {
+                weight = ConfigProvider.getConsoleWeight();
+                isVip = true;
+            } else if (p == null) {
+                weight = ConfigProvider.getWeight();
+                isVip = false;
+            } else if (PermissionManager.isAllowed(p, PermissionManager.Perms.QueueBypass)) {
+                weight = ConfigProvider.getBypassWeight();
+                isVip = true;
+            } else if (PermissionManager.isAllowed(p, PermissionManager.Perms.QueueVip)) {
+                weight = ConfigProvider.getVipWeight();
+                isVip = true;
             } else {
-                retry--;
+                weight = ConfigProvider.getWeight();
+                isVip = false;
+            }
+
+            hasVips |= isVip;
+            entry.setWeight(lagging && !isVip ? 0 : weight);
+        }
+
+        return hasVips;
+    }
+
+    /**
+     * Fetch a batch of player entries that are going to by placed in this run
+     *
+     * @param player the player name
+     * @param playerEntry the player queue entry
+     * @param blockCnt number of entries to fetch
+     * @param entries destination blocks entries
+     * @param jobsToCancel destination list for finished jobs
+     * @return number of entries fetched
+     */
+    int fetchEntries(final String player, final PlayerEntry playerEntry, final int blockCnt,
+            final List<BlockPlacerEntry> entries, final List<BlockPlacerJobEntry> jobsToCancel) {
+        final int result = playerEntry.poll(blockCnt, entries);
+        if (result == 0 && playerEntry.getQueueSize() == 0) {
+            final List<BlockPlacerJobEntry> jobsDone = new ArrayList<BlockPlacerJobEntry>();
+            for (BlockPlacerJobEntry job : playerEntry.getJobs()) {
+                BlockPlacerJobEntry.JobStatus jStatus = job.getStatus();
+                if (jStatus == BlockPlacerJobEntry.JobStatus.Done
+                        || jStatus == BlockPlacerJobEntry.JobStatus.Waiting) {
+                    jobsDone.add(job);
+                }
+            }
+
+            for (BlockPlacerJobEntry job : jobsDone) {
+                playerEntry.removeJob(job);
+            }
+            jobsToCancel.addAll(jobsDone);
+        }
+
+        final int size = playerEntry.getQueueSize();
+        if (playerEntry.getMemoryQueueSize() < m_queueSoftLimit && m_lockedQueues.contains(player)) {
+            PluginMain.say(player, "Your block queue is unlocked. You can use WorldEdit.");
+            unlockQueue(player);
+        }
+        if (size == 0 && playerEntry.tryRemove()) {
+            m_blocks.remove(player, playerEntry);
+            Player p = PluginMain.getPlayer(player);
+            if (PermissionManager.isAllowed(p, PermissionManager.Perms.ProgressBar)) {
+                m_barAPI.disableMessage(p);
             }
         }
+
         return result;
     }
 
@@ -418,20 +621,28 @@ public class BlockPlacer implements Runnable {
      */
     public void queueStop() {
         m_shutdown = true;
+        synchronized (m_queueMonitor) {
+            m_queueMonitor.notifyAll();
+        }
     }
 
     /**
      * stop block logger
      */
     public void stop() {
+        //Wake up the producers waiting for a locked queue
+        queueStop();
+
         m_task.cancel();
+        m_throttle.stop();
+        m_physicsSettler.stop();
         synchronized (m_mutex) {
             if (m_getTask != null) {
                 m_getTask.cancel();
                 m_getTask = null;
             }
         }
-
+        m_readService.cancel();
     }
 
     /**
@@ -441,40 +652,26 @@ public class BlockPlacer implements Runnable {
      * @return
      */
     public int getJobId(String player) {
-        PlayerEntry playerEntry;
-        synchronized (this) {
-            if (!m_blocks.containsKey(player)) {
-                playerEntry = new PlayerEntry();
-                m_blocks.put(player, playerEntry);
-            } else {
-                playerEntry = m_blocks.get(player);
-            }
-        }
-
-        return playerEntry.getNextJobId();
+        return getOrCreatePlayerEntry(player).getNextJobId();
     }
 
     public BlockPlacerJobEntry getJob(String player, int jobId) {
-        synchronized (this) {
-            if (!m_blocks.containsKey(player)) {
-                return null;
-            }
-            PlayerEntry playerEntry = m_blocks.get(player);
-            return playerEntry.getJob(jobId);
+        PlayerEntry playerEntry = m_blocks.get(player);
+        if (playerEntry == null) {
+            return null;
         }
+        return playerEntry.getJob(jobId);
     }
 
     public void addJob(String player, BlockPlacerJobEntry job) {
-        synchronized (this) {
-            PlayerEntry playerEntry;
-
-            if (!m_blocks.containsKey(player)) {
-                playerEntry = new PlayerEntry();
-                m_blocks.put(player, playerEntry);
-            } else {
-                playerEntry = m_blocks.get(player);
+        while (true) {
+            PlayerEntry playerEntry = getOrCreatePlayerEntry(player);
+            if (playerEntry.addJob(job)) {
+                break;
             }
-            playerEntry.addJob((BlockPlacerJobEntry) job);
+
+            //The player entry was removed by the block placer
+            m_blocks.remove(player, playerEntry);
         }
 
         synchronized (m_jobAddedListeners) {
@@ -489,65 +686,207 @@ public class BlockPlacer implements Runnable {
      *
      */
     public boolean addTasks(String player, BlockPlacerEntry entry) {
-        synchronized (this) {
-            PlayerEntry playerEntry;
+        if (!waitForQueue(player)) {
+            return false;
+        }
 
-            if (!m_blocks.containsKey(player)) {
-                playerEntry = new PlayerEntry();
-                m_blocks.put(player, playerEntry);
-            } else {
-                playerEntry = m_blocks.get(player);
+        boolean bypass = !PermissionManager.isAllowed(PluginMain.getPlayer(player), PermissionManager.Perms.QueueBypass);
+        bypass |= entry instanceof BlockPlacerJobEntry;
+
+        String worldName = null;
+        if (entry instanceof BlockPlacerBlockEntry) {
+            World world = entry.getEditSession().getCBWorld();
+            worldName = world != null ? world.getName() : null;
+        }
+        while (true) {
+            PlayerEntry playerEntry = getOrCreatePlayerEntry(player);
+            if (!hasSpace(player, playerEntry, bypass)) {
+                return false;
             }
-            Queue<BlockPlacerEntry> queue = playerEntry.getQueue();
 
-            if (m_lockedQueues.contains(player)) {
+            //Physics is frozen before the entry is visible to the block placer
+            if (worldName != null) {
+                m_physicsWatcher.addLocation(worldName, ((BlockPlacerBlockEntry) entry).getLocation());
+            }
+            if (!playerEntry.add(entry)) {
+                if (worldName != null) {
+                    m_physicsWatcher.removeLocation(worldName, ((BlockPlacerBlockEntry) entry).getLocation());
+                }
+                //The player entry was removed by the block placer
+                m_blocks.remove(player, playerEntry);
+                continue;
+            }
+            return checkHardLimit(player, playerEntry, bypass);
+        }
+    }
+
+    /**
+     * Add block to perform in async mode. Plain blocks are stored in packed
+     * block segments, all other blocks use BlockPlacerBlockEntry.
+     *
+     * @param player
+     * @param editSession
+     * @param jobId
+     * @param location
+     * @param block
+     * @return
+     */
+    public boolean addBlock(String player, AsyncEditSession editSession, int jobId,
+            Vector location, BaseBlock block) {
+        if (!BlockPlacerBlockSegment.canPack(block)) {
+            return addTasks(player, new BlockPlacerBlockEntry(editSession, jobId, location, block));
+        }
+
+        if (!waitForQueue(player)) {
+            return false;
+        }
+
+        boolean bypass = !PermissionManager.isAllowed(PluginMain.getPlayer(player), PermissionManager.Perms.QueueBypass);
+        while (true) {
+            PlayerEntry playerEntry = getOrCreatePlayerEntry(player);
+            if (!hasSpace(player, playerEntry, bypass)) {
                 return false;
             }
 
-            boolean bypass = !PermissionManager.isAllowed(PluginMain.getPlayer(player), PermissionManager.Perms.QueueBypass);
-            int size = 0;
-            for (Map.Entry<String, PlayerEntry> queueEntry : m_blocks.entrySet()) {
-                size += queueEntry.getValue().getQueue().size();
+            if (!playerEntry.addBlock(editSession, jobId, location, block, m_physicsWatcher)) {
+                //The player entry was removed by the block placer
+                m_blocks.remove(player, playerEntry);
+                continue;
             }
 
-            bypass |= entry instanceof BlockPlacerJobEntry;
-            if (m_queueMaxSize > 0 && size > m_queueMaxSize && !bypass) {
-                if (player == null)
-                {
-                    return false;
-                }
-                
-                if (!playerEntry.isInformed()){
-                    playerEntry.setInformed(true);
-                    PluginMain.say(player, "Out of space on AWE block queue.");
-                }
-                
+            return checkHardLimit(player, playerEntry, bypass);
+        }
+    }
+
+    /**
+     * Get the player queue entry, create new entry if not found
+     *
+     * @param player
+     * @return
+     */
+    private PlayerEntry getOrCreatePlayerEntry(String player) {
+        PlayerEntry playerEntry = m_blocks.get(player);
+        if (playerEntry == null) {
+            PlayerEntry newEntry = new PlayerEntry(m_queueSize, m_spilledSize);
+            playerEntry = m_blocks.putIfAbsent(player, newEntry);
+            if (playerEntry == null) {
+                playerEntry = newEntry;
+            }
+        }
+
+        return playerEntry;
+    }
+
+    /**
+     * Check if there is space on the global queue
+     *
+     * @param player
+     * @param playerEntry
+     * @param bypass
+     * @return
+     */
+    private boolean hasSpace(String player, PlayerEntry playerEntry, boolean bypass) {
+        if (m_queueMaxSize > 0 && m_queueSize.get() - m_spilledSize.get() > m_queueMaxSize && !bypass) {
+            if (player == null) {
                 return false;
-            } else {
-                if (playerEntry.isInformed()){
-                    playerEntry.setInformed(false);
-                }
-                
-                synchronized (queue) {
-                    queue.add(entry);
-                }
-                if (entry instanceof BlockPlacerBlockEntry) {
-                    World world = entry.getEditSession().getCBWorld();
-                    if (world != null) {
-                        m_physicsWatcher.addLocation(world.getName(), ((BlockPlacerBlockEntry) entry).getLocation());
-                    }
-                }
-                if (entry instanceof BlockPlacerJobEntry) {
-                    playerEntry.addJob((BlockPlacerJobEntry) entry);
+            }
+
+            if (!playerEntry.isInformed()) {
+                playerEntry.setInformed(true);
+                PluginMain.say(player, "Out of space on AWE block queue.");
+            }
+
+            return false;
+        }
+
+        if (playerEntry.isInformed()) {
+            playerEntry.setInformed(false);
+        }
+        return true;
+    }
+
+    /**
+     * Lock the player queue if the hard limit is reached
+     *
+     * @param player
+     * @param playerEntry
+     * @param bypass
+     * @return false if the queue was locked and the producer cannot wait
+     */
+    private boolean checkHardLimit(String player, PlayerEntry playerEntry, boolean bypass) {
+        if (playerEntry.getMemoryQueueSize() >= m_queueHardLimit && bypass) {
+            m_lockedQueues.add(player);
+            if (canWaitForQueue()) {
+                PluginMain.say(player, "Your block queue is full. The job is paused until the blocks are placed.");
+                return true;
+            }
+            PluginMain.say(player, "Your block queue is full. Wait for items to finish drawing.");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Can the current thread wait for a locked queue. Only the async job
+     * threads wait, the main thread and other plugins never wait.
+     *
+     * @return
+     */
+    private boolean canWaitForQueue() {
+        return ConfigProvider.getQueueWaitTimeout() > 0 && !isMainTask()
+                && JobContext.current() != null;
+    }
+
+    /**
+     * Wait until the player queue is unlocked, the wait is bounded by the
+     * queue wait timeout and ends when the job is canceled.
+     *
+     * @param player
+     * @return true if the queue is not locked
+     */
+    private boolean waitForQueue(String player) {
+        if (!m_lockedQueues.contains(player)) {
+            return true;
+        }
+        if (!canWaitForQueue()) {
+            return false;
+        }
+
+        final BlockPlacerJobEntry job = JobContext.current().getJob();
+        final long start = System.currentTimeMillis();
+        final long end = start + ConfigProvider.getQueueWaitTimeout() * 1000L;
+        synchronized (m_queueMonitor) {
+            while (m_lockedQueues.contains(player) && !m_shutdown
+                    && (job == null || !job.isCanceled())) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
                 }
-                if (queue.size() >= m_queueHardLimit && bypass) {
-                    m_lockedQueues.add(player);                    
-                    PluginMain.say(player, "Your block queue is full. Wait for items to finish drawing.");
-                    return false;
+                try {
+                    m_queueMonitor.wait(Math.min(wait, QUEUE_WAIT_SLICE));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
+        }
 
-            return true;
+        if (job != null) {
+            job.addBlockedTime(System.currentTimeMillis() - start);
+        }
+        return !m_lockedQueues.contains(player);
+    }
+
+    /**
+     * Unlock the player queue and wake up the waiting producers
+     *
+     * @param player
+     */
+    private void unlockQueue(String player) {
+        m_lockedQueues.remove(player);
+        synchronized (m_queueMonitor) {
+            m_queueMonitor.notifyAll();
         }
     }
 
@@ -611,51 +950,32 @@ public class BlockPlacer implements Runnable {
         int newSize = 0;
         int result = 0;
         PlayerEntry playerEntry;
-        Queue<BlockPlacerEntry> queue;
         BlockPlacerJobEntry job;
         synchronized (this) {
-            if (!m_blocks.containsKey(player)) {
+            playerEntry = m_blocks.get(player);
+            if (playerEntry == null) {
                 return 0;
             }
-            playerEntry = m_blocks.get(player);
             job = playerEntry.getJob(jobId);
             if (job instanceof BlockPlacerUndoJob) {
                 PluginMain.say(player, "Warning: Undo jobs shuld not by canceled, ingoring!");
                 return 0;
             }
 
-            queue = playerEntry.getQueue();
             playerEntry.removeJob(job);
             onJobRemoved(job);
         }
         waitForJob(job);
         synchronized (this) {
-            Queue<BlockPlacerEntry> filtered = new ArrayDeque<BlockPlacerEntry>();
-            synchronized (queue) {
-                for (BlockPlacerEntry entry : queue) {
-                    if (entry.getJobId() == jobId) {
-                        if (entry instanceof BlockPlacerBlockEntry) {
-                            World world = entry.getEditSession().getCBWorld();
-                            if (world != null) {
-                                m_physicsWatcher.removeLocation(world.getName(), ((BlockPlacerBlockEntry) entry).getLocation());
-                            }
-                        } else if (entry instanceof BlockPlacerJobEntry) {
-                            BlockPlacerJobEntry jobEntry = (BlockPlacerJobEntry) entry;
-                            playerEntry.removeJob(jobEntry);
-                            onJobRemoved(jobEntry);
-                        }
-                    } else {
-                        filtered.add(entry);
-                    }
-                }
+            final List<BlockPlacerEntry> removed = new ArrayList<BlockPlacerEntry>();
+            result = playerEntry.removeEntries(jobId, removed);
+            for (BlockPlacerEntry entry : removed) {
+                onEntryRemoved(playerEntry, entry);
             }
 
-            newSize = filtered.size();
-            result = queue.size() - filtered.size();
-            if (newSize > 0) {
-                playerEntry.updateQueue(filtered);
-            } else {
-                m_blocks.remove(player);
+            newSize = playerEntry.getQueueSize();
+            if (newSize == 0 && playerEntry.tryRemove()) {
+                m_blocks.remove(player, playerEntry);
                 Player p = PluginMain.getPlayer(player);
                 if (PermissionManager.isAllowed(p, PermissionManager.Perms.ProgressBar)) {
                     m_barAPI.disableMessage(p);
@@ -663,10 +983,10 @@ public class BlockPlacer implements Runnable {
             }
             if (m_lockedQueues.contains(player)) {
                 if (newSize == 0) {
-                    m_lockedQueues.remove(player);
-                } else if (newSize < m_queueSoftLimit) {
+                    unlockQueue(player);
+                } else if (playerEntry.getMemoryQueueSize() < m_queueSoftLimit) {
                     PluginMain.say(player, "Your block queue is unlocked. You can use WorldEdit.");
-                    m_lockedQueues.remove(player);
+                    unlockQueue(player);
                 }
             }
         }
@@ -681,44 +1001,56 @@ public class BlockPlacer implements Runnable {
     public int purge(String player) {
         int result = 0;
         synchronized (this) {
-            if (m_blocks.containsKey(player)) {
-                PlayerEntry playerEntry = m_blocks.get(player);
-                Queue<BlockPlacerEntry> queue = playerEntry.getQueue();
-                synchronized (queue) {
-                    for (BlockPlacerEntry entry : queue) {
-                        if (entry instanceof BlockPlacerBlockEntry) {
-                            World world = entry.getEditSession().getCBWorld();
-                            if (world != null) {
-                                m_physicsWatcher.removeLocation(world.getName(), ((BlockPlacerBlockEntry) entry).getLocation());
-                            }
-                        } else if (entry instanceof BlockPlacerJobEntry) {
-                            BlockPlacerJobEntry jobEntry = (BlockPlacerJobEntry) entry;
-                            playerEntry.removeJob(jobEntry);
-                            onJobRemoved(jobEntry);
-                        }
-                    }
+            PlayerEntry playerEntry = m_blocks.remove(player);
+            if (playerEntry != null) {
+                final List<BlockPlacerEntry> removed = new ArrayList<BlockPlacerEntry>();
+                result = playerEntry.clear(removed);
+                for (BlockPlacerEntry entry : removed) {
+                    onEntryRemoved(playerEntry, entry);
                 }
+                playerEntry.releaseSpillFile();
 
                 Collection<BlockPlacerJobEntry> jobs = playerEntry.getJobs();
                 for (BlockPlacerJobEntry job : jobs.toArray(new BlockPlacerJobEntry[0])) {
                     playerEntry.removeJob(job.getJobId());
                     onJobRemoved(job);
                 }
-                result = queue.size();
-                m_blocks.remove(player);
                 Player p = PluginMain.getPlayer(player);
                 if (PermissionManager.isAllowed(p, PermissionManager.Perms.ProgressBar)) {
                     m_barAPI.disableMessage(p);
                 }
             }
             if (m_lockedQueues.contains(player)) {
-                m_lockedQueues.remove(player);
+                unlockQueue(player);
             }
         }
 
         return result;
     }
 
+    /**
+     * Release the resources held by an entry removed from the queue
+     *
+     * @param playerEntry
+     * @param entry
+     */
+    private void onEntryRemoved(PlayerEntry playerEntry, BlockPlacerEntry entry) {
+        if (entry instanceof BlockPlacerBlockSegment) {
+            ((BlockPlacerBlockSegment) entry).removeLocations(m_physicsWatcher);
+        } else if (entry instanceof BlockPlacerSpilledSegment) {
+            ((BlockPlacerSpilledSegment) entry).removeLocations(m_physicsWatcher);
+        } else if (entry instanceof BlockPlacerBlockEntry) {
+            World world = entry.getEditSession().getCBWorld();
+            if (world != null) {
+                m_physicsWatcher.removeLocation(world.getName(), ((BlockPlacerBlockEntry) entry).getLocation());
+            }
+        } else if (entry instanceof BlockPlacerJobEntry) {
+            BlockPlacerJobEntry jobEntry = (BlockPlacerJobEntry) entry;
+            playerEntry.removeJob(jobEntry);
+            onJobRemoved(jobEntry);
+        }
+    }
+
     /**
      * Remove all entries
      */
@@ -739,9 +1071,25 @@ public class BlockPlacer implements Runnable {
      * @return players list
      */
     public String[] getAllPlayers() {
-        synchronized (this) {
-            return m_blocks.keySet().toArray(new String[0]);
-        }
+        return m_blocks.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Get the number of blocks in all player queues
+     *
+     * @return
+     */
+    public int getQueueSize() {
+        return m_queueSize.get();
+    }
+
+    /**
+     * Get the number of blocks stored in the spill files
+     *
+     * @return
+     */
+    public int getSpilledSize() {
+        return m_spilledSize.get();
     }
 
     /**
@@ -751,12 +1099,7 @@ public class BlockPlacer implements Runnable {
      * @return number of stored events
      */
     public PlayerEntry getPlayerEvents(String player) {
-        synchronized (this) {
-            if (m_blocks.containsKey(player)) {
-                return m_blocks.get(player);
-            }
-            return null;
-        }
+        return m_blocks.get(player);
     }
 
     /**
@@ -766,12 +1109,7 @@ public class BlockPlacer implements Runnable {
      * @return
      */
     public String getPlayerMessage(String player) {
-        PlayerEntry entry = null;
-        synchronized (this) {
-            if (m_blocks.containsKey(player)) {
-                entry = m_blocks.get(player);
-            }
-        }
+        PlayerEntry entry = m_blocks.get(player);
 
         boolean bypass = PermissionManager.isAllowed(PluginMain.getPlayer(player), PermissionManager.Perms.QueueBypass);
         return getPlayerMessage(entry, bypass);
@@ -800,7 +1138,7 @@ public class BlockPlacer implements Runnable {
         double time = 0;
 
         if (player != null) {
-            blocks = player.getQueue().size();
+            blocks = player.getQueueSize();
             speed = player.getSpeed();
         }
         if (speed > 0) {
@@ -815,31 +1153,23 @@ public class BlockPlacer implements Runnable {
     }
 
     /**
-     * Filter player names for vip players (AWE.user.vip-queue)
+     * Gets the last run statistics message
      *
-     * @param playerNames
      * @return
      */
-    private HashSet<String> getVips(String[] playerNames) {
-        if (playerNames == null || playerNames.length == 0) {
-            return new HashSet<String>();
-        }
-
-        HashSet<String> result = new HashSet<String>(playerNames.length);
-
-        for (String login : playerNames) {
-            Player player = PluginMain.getPlayer(login);
-            if (player == null) {
-                continue;
-            }
-
-            if (PermissionManager.isAllowed(player, PermissionManager.Perms.QueueVip)
-                    && !result.contains(login)) {
-                result.add(login);
-            }
-        }
-
-        return result;
+    public String getRunMessage() {
+        final String format = ChatColor.YELLOW + "Last run: " + ChatColor.WHITE + "%d"
+                + ChatColor.YELLOW + " entries placed in " + ChatColor.WHITE + "%.2fms"
+                + ChatColor.YELLOW + " (budget: " + ChatColor.WHITE + "%s"
+                + ChatColor.YELLOW + ", fetch: " + ChatColor.WHITE + "%.3fms"
+                + ChatColor.YELLOW + ").";
+
+        final String budget = m_lastRunBudget > 0
+                ? String.format("%.2fms", m_lastRunBudget / (double) NANOS_PER_MS)
+                : "none";
+        return String.format(format, m_lastRunEntries,
+                m_lastRunTimeUsed / (double) NANOS_PER_MS, budget,
+                m_lastRunFetchTime / (double) NANOS_PER_MS);
     }
 
     /**
@@ -849,10 +1179,7 @@ public class BlockPlacer implements Runnable {
      * @param jobEntry
      */
     public void removeJob(final String player, BlockPlacerJobEntry jobEntry) {
-        PlayerEntry playerEntry;
-        synchronized (this) {
-            playerEntry = m_blocks.get(player);
-        }
+        PlayerEntry playerEntry = m_blocks.get(player);
 
         if (playerEntry != null) {
             playerEntry.removeJob(jobEntry);
@@ -863,14 +1190,30 @@ public class BlockPlacer implements Runnable {
     /**
      * Add new get block task (high priority tasks!)
      *
-     * @param block
+     * @param <T>
+     * @param world the read world
+     * @param x chunk X coordinate
+     * @param z chunk Z coordinate
+     * @param request the read operation
+     * @return the read result
      */
-    public void addGetTask(BlockPlacerGetBlockEntry block) {
-        synchronized (m_getBlocks) {
-            m_getBlocks.add(block);
-        }
+    public <T> Future<T> addGetTask(World world, int x, int z, Callable<T> request) {
+        Future<T> result = m_readService.submit(world, x, z, request);
 
         startGetTask();
+        return result;
+    }
+
+    /**
+     * Get the read requests statistics
+     *
+     * @return
+     */
+    public String getReadMessage() {
+        return ChatColor.YELLOW + "Reads: " + ChatColor.WHITE + m_readService.getLatency().getCount()
+                + ChatColor.YELLOW + ", pending: " + ChatColor.WHITE + m_readService.size()
+                + ChatColor.YELLOW + ", tick: " + ChatColor.WHITE + m_readService.getTickTime()
+                + ChatColor.YELLOW + ", latency: " + ChatColor.WHITE + m_readService.getLatency();
     }
 
     /**
@@ -896,7 +1239,7 @@ public class BlockPlacer implements Runnable {
 
         if (entry != null) {
             jobs = entry.getJobs().size();
-            blocks = entry.getQueue().size();
+            blocks = entry.getQueueSize();
             speed = entry.getSpeed();
         }
         if (speed > 0) {
@@ -918,6 +1261,13 @@ public class BlockPlacer implements Runnable {
      * @param job
      */
     private void onJobRemoved(BlockPlacerJobEntry job) {
+        job.unfreeze(m_physicsWatcher);
+        if (ConfigProvider.isPhysicsSettleEnabled()) {
+            m_physicsSettler.settle(job);
+        }
+        if (m_journal != null) {
+            m_journal.jobDone(job);
+        }
         synchronized (m_jobAddedListeners) {
             for (IBlockPlacerListener listener : m_jobAddedListeners) {
                 listener.jobRemoved(job);
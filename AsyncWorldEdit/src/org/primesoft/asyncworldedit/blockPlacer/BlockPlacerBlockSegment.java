@@ -0,0 +1,337 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import com.sk89q.worldedit.blocks.BaseBlock;
+import java.util.Arrays;
+import org.bukkit.World;
+import org.primesoft.asyncworldedit.PhysicsWatch;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+import org.primesoft.asyncworldedit.worldedit.AsyncEditSession;
+
+/**
+ * Packed block queue segment. Stores up to SEGMENT_SIZE plain blocks of a
+ * single job as primitive arrays (packed position and type/data pairs)
+ * instead of one BlockPlacerBlockEntry per block.
+ *
+ * @author SBPrime
+ */
+public class BlockPlacerBlockSegment extends BlockPlacerEntry {
+
+    /**
+     * Maximum number of blocks in a segment
+     */
+    public final static int SEGMENT_SIZE = 4096;
+
+    /**
+     * Initial segment capacity
+     */
+    private final static int INITIAL_SIZE = 64;
+
+    /**
+     * Coalescing index size (load factor at most 0.5)
+     */
+    private final static int INDEX_SIZE = SEGMENT_SIZE * 2;
+
+    /**
+     * Coalescing index mask
+     */
+    private final static int INDEX_MASK = INDEX_SIZE - 1;
+
+    /**
+     * Packed block positions
+     */
+    private long[] m_positions;
+
+    /**
+     * Packed block type and data
+     */
+    private int[] m_blocks;
+
+    /**
+     * Number of blocks stored in the segment
+     */
+    private int m_size;
+
+    /**
+     * Number of blocks handed to the block placer
+     */
+    private int m_fetched;
+
+    /**
+     * The segment job (may by null)
+     */
+    private final BlockPlacerJobEntry m_job;
+
+    /**
+     * Coalescing index, open addressing hash of the packed positions. Stores
+     * the block index + 1, 0 marks an empty slot. Used only while the segment
+     * is open, null if coalescing is disabled.
+     */
+    private int[] m_index;
+
+    /**
+     * Can the block by stored in a packed segment. Blocks with additional
+     * data (signs, chests, spawners...) use BlockPlacerBlockEntry.
+     *
+     * @param block
+     * @return
+     */
+    public static boolean canPack(BaseBlock block) {
+        if (block == null || block.getClass() != BaseBlock.class) {
+            return false;
+        }
+
+        int data = block.getData();
+        return block.getType() >= 0 && data >= 0 && data <= 0xff;
+    }
+
+    /**
+     * Pack block type and data
+     *
+     * @param block
+     * @return
+     */
+    public static int packBlock(BaseBlock block) {
+        return (block.getType() << 8) | block.getData();
+    }
+
+    /**
+     * Unpack block type and data
+     *
+     * @param block
+     * @return
+     */
+    public static BaseBlock unpackBlock(int block) {
+        return new BaseBlock(block >>> 8, block & 0xff);
+    }
+
+    public BlockPlacerBlockSegment(AsyncEditSession editSession, int jobId,
+            BlockPlacerJobEntry job, boolean coalesce) {
+        super(editSession, jobId);
+
+        m_job = job;
+        m_index = coalesce ? new int[INDEX_SIZE] : null;
+
+        m_positions = new long[INITIAL_SIZE];
+        m_blocks = new int[INITIAL_SIZE];
+        m_size = 0;
+        m_fetched = 0;
+    }
+
+    /**
+     * Create a sealed segment from stored blocks
+     *
+     * @param editSession
+     * @param jobId
+     * @param job
+     * @param positions packed block positions
+     * @param blocks packed blocks
+     */
+    public BlockPlacerBlockSegment(AsyncEditSession editSession, int jobId,
+            BlockPlacerJobEntry job, long[] positions, int[] blocks) {
+        super(editSession, jobId);
+
+        m_job = job;
+        m_index = null;
+        m_positions = positions;
+        m_blocks = blocks;
+        m_size = positions.length;
+        m_fetched = 0;
+    }
+
+    /**
+     * Number of blocks stored in the segment
+     *
+     * @return
+     */
+    public int getBlockCount() {
+        return m_size;
+    }
+
+    /**
+     * Packed block positions
+     *
+     * @return
+     */
+    public long[] getPositions() {
+        return m_positions;
+    }
+
+    /**
+     * Packed blocks
+     *
+     * @return
+     */
+    public int[] getBlocks() {
+        return m_blocks;
+    }
+
+    /**
+     * Add block to the segment
+     *
+     * @param position packed block position
+     * @param block packed block type and data
+     * @return false if the segment is full
+     */
+    public boolean add(long position, int block) {
+        if (m_size >= SEGMENT_SIZE) {
+            return false;
+        }
+
+        if (m_size == m_positions.length) {
+            int newSize = Math.min(SEGMENT_SIZE, m_size * 2);
+            m_positions = Arrays.copyOf(m_positions, newSize);
+            m_blocks = Arrays.copyOf(m_blocks, newSize);
+        }
+
+        m_positions[m_size] = position;
+        m_blocks[m_size] = block;
+        m_size++;
+
+        if (m_index != null) {
+            m_index[findSlot(position)] = m_size;
+        }
+        return true;
+    }
+
+    /**
+     * Replace the block already stored in the segment (last write wins)
+     *
+     * @param position packed block position
+     * @param block packed block type and data
+     * @return true if the block was replaced, false if the position is not
+     * stored or coalescing is disabled
+     */
+    public boolean replace(long position, int block) {
+        if (m_index == null) {
+            return false;
+        }
+
+        int idx = m_index[findSlot(position)] - 1;
+        if (idx < m_fetched) {
+            return false;
+        }
+
+        m_blocks[idx] = block;
+        return true;
+    }
+
+    /**
+     * Close the segment for coalescing, called when the segment is published
+     * to the block placer
+     */
+    public void seal() {
+        m_index = null;
+    }
+
+    /**
+     * Find the coalescing index slot for the position
+     *
+     * @param position
+     * @return slot containing the position or the first empty slot
+     */
+    private int findSlot(long position) {
+        int hash = (int) (position ^ (position >>> 32)) * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & INDEX_MASK;
+        while (true) {
+            int idx = m_index[slot];
+            if (idx == 0 || m_positions[idx - 1] == position) {
+                return slot;
+            }
+            slot = (slot + 1) & INDEX_MASK;
+        }
+    }
+
+    /**
+     * The segment job
+     *
+     * @return job entry or null if not found
+     */
+    public BlockPlacerJobEntry getJob() {
+        return m_job;
+    }
+
+    /**
+     * Is the segment full
+     *
+     * @return
+     */
+    public boolean isFull() {
+        return m_size >= SEGMENT_SIZE;
+    }
+
+    /**
+     * Number of blocks not yet handed to the block placer
+     *
+     * @return
+     */
+    public int getRemaining() {
+        return m_size - m_fetched;
+    }
+
+    /**
+     * Fetch a range of blocks for placing
+     *
+     * @param count number of blocks to fetch
+     * @return
+     */
+    public BlockPlacerSegmentEntry fetch(int count) {
+        int from = m_fetched;
+        int to = Math.min(m_size, from + count);
+
+        m_fetched = to;
+        return new BlockPlacerSegmentEntry(m_editSession, getJobId(), m_job,
+                m_positions, m_blocks, from, to);
+    }
+
+    /**
+     * Remove all not placed blocks from the physics watcher
+     *
+     * @param physicsWatcher
+     */
+    public void removeLocations(PhysicsWatch physicsWatcher) {
+        final World world = m_editSession.getCBWorld();
+        if (world == null || BlockPlacerJobEntry.isBoxFrozen(m_job)) {
+            return;
+        }
+
+        final String name = world.getName();
+        for (int i = m_fetched; i < m_size; i++) {
+            long position = m_positions[i];
+            physicsWatcher.removeLocation(name, PackedPosition.getX(position),
+                    PackedPosition.getY(position), PackedPosition.getZ(position));
+        }
+    }
+
+    @Override
+    public boolean isDemanding() {
+        return false;
+    }
+
+    @Override
+    public void Process(BlockPlacer bp) {
+        fetch(getRemaining()).Process(bp);
+    }
+}
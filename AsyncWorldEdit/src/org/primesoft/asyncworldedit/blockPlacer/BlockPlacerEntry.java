@@ -57,6 +57,15 @@ public abstract class BlockPlacerEntry {
     }
     
     
+    /**
+     * Number of blocks placed by this entry
+     * @return 
+     */
+    public int getSize() {
+        return 1;
+    }
+    
+    
     /**
      * Process the entry
      */
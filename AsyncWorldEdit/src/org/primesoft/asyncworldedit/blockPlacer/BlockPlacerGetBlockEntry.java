@@ -25,48 +25,29 @@ package org.primesoft.asyncworldedit.blockPlacer;
 
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.blocks.BaseBlock;
-import org.bukkit.World;
+import java.util.concurrent.Callable;
 import org.primesoft.asyncworldedit.worldedit.AsyncEditSession;
 
 /**
  *
  * @author Prime
  */
-public class BlockPlacerGetBlockEntry extends BlockPlacerEntry {
+public class BlockPlacerGetBlockEntry implements Callable<BaseBlock> {
 
+    private final AsyncEditSession m_editSession;
     private final Vector m_location;
-    private final Object m_mutex = new Object();
-    private BaseBlock m_result = null;
 
-    @Override
-    public boolean isDemanding() {
-        return false;
-    }
-    
     public Vector getLocation() {
         return m_location;
     }
 
-    public Object getMutex() {
-        return m_mutex;
-    }
-
-    public BaseBlock getResult() {
-        return m_result;
-    }
-
-    public BlockPlacerGetBlockEntry(AsyncEditSession editSession,
-            int jobId, Vector location) {
-        super(editSession, jobId);
+    public BlockPlacerGetBlockEntry(AsyncEditSession editSession, Vector location) {
+        m_editSession = editSession;
         m_location = location;
     }
 
     @Override
-    public void Process(BlockPlacer bp) {
-        final World world = m_editSession.getCBWorld();       
-        synchronized (m_mutex) {
-            m_result = m_editSession.doRawGetBlock(m_location);
-            m_mutex.notifyAll();
-        }
+    public BaseBlock call() {
+        return m_editSession.doRawGetBlock(m_location);
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import java.util.concurrent.Callable;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+
+/**
+ * Request for a batch of chunk snapshots, served by the main thread
+ *
+ * @author SBPrime
+ */
+public class BlockPlacerGetChunkEntry implements Callable<ChunkSnapshot[]> {
+
+    /**
+     * The chunks world
+     */
+    private final World m_world;
+
+    /**
+     * Requested chunks (x, z pairs), the first chunk is the chunk that is
+     * read, the other chunks are prefetched only if they are loaded
+     */
+    private final int[] m_chunks;
+
+    public BlockPlacerGetChunkEntry(World world, int[] chunks) {
+        m_world = world;
+        m_chunks = chunks;
+    }
+
+    public World getWorld() {
+        return m_world;
+    }
+
+    public int[] getChunks() {
+        return m_chunks;
+    }
+
+    /**
+     * Get the snapshots, the snapshot order matches the requested chunks.
+     * The prefetched chunks that are not loaded are skipped (null) so
+     * the request never loads or generates chunks the job does not read.
+     *
+     * @return
+     */
+    @Override
+    public ChunkSnapshot[] call() {
+        final ChunkSnapshot[] result = new ChunkSnapshot[m_chunks.length / 2];
+        for (int i = 0; i < result.length; i++) {
+            final int x = m_chunks[i * 2];
+            final int z = m_chunks[i * 2 + 1];
+            if (i > 0 && !m_world.isChunkLoaded(x, z)) {
+                continue;
+            }
+            result[i] = m_world.getChunkAt(x, z).getChunkSnapshot(false, false, false);
+        }
+        return result;
+    }
+}
@@ -24,10 +24,19 @@
 package org.primesoft.asyncworldedit.blockPlacer;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import org.bukkit.ChatColor;
 import org.primesoft.asyncworldedit.ConfigProvider;
+import org.primesoft.asyncworldedit.PhysicsWatch;
 import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.utils.BoundingBox;
+import org.primesoft.asyncworldedit.utils.LongIntHashMap;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
 import org.primesoft.asyncworldedit.worldedit.AsyncEditSession;
 import org.primesoft.asyncworldedit.worldedit.CancelabeEditSession;
 
@@ -70,6 +79,87 @@ public class BlockPlacerJobEntry extends BlockPlacerEntry {
      */
     private boolean m_taskDone;
 
+    /**
+     * Number of job blocks in the queue (per lane)
+     */
+    private final AtomicIntegerArray m_queuedBlocks = new AtomicIntegerArray(QueueLane.values().length);
+
+    /**
+     * Number of job blocks added to the queue
+     */
+    private final AtomicInteger m_totalBlocks = new AtomicInteger();
+
+    /**
+     * Time the job producer spent waiting for a locked queue (ms)
+     */
+    private final AtomicLong m_blockedTime = new AtomicLong();
+
+    /**
+     * Number of times the job producer waited for a locked queue
+     */
+    private final AtomicInteger m_blockedCount = new AtomicInteger();
+
+    /**
+     * The queue lane used for new job entries
+     */
+    private volatile QueueLane m_lane;
+
+    /**
+     * Is the job physics frozen using the bounding box (0 - not decided,
+     * 1 - box, 2 - blocks)
+     */
+    private volatile int m_freezeMode;
+
+    /**
+     * The frozen bounding box of one world
+     */
+    private static class FreezeBox {
+
+        private final String m_world;
+        private final BoundingBox m_box;
+
+        public FreezeBox(String world, BoundingBox box) {
+            m_world = world;
+            m_box = box;
+        }
+    }
+
+    /**
+     * The frozen bounding boxes per world (job lock required)
+     */
+    private HashMap<String, FreezeBox> m_freezeBoxes;
+
+    /**
+     * Last used frozen bounding box
+     */
+    private volatile FreezeBox m_lastFreezeBox;
+
+    /**
+     * The job physics was released, no more boxes are frozen (job lock
+     * required)
+     */
+    private boolean m_isThawed;
+
+    /**
+     * Chunk sections changed by the job per world
+     */
+    private HashMap<String, LongIntHashMap> m_touched;
+
+    /**
+     * Last touched chunk section
+     */
+    private long m_lastTouched;
+
+    /**
+     * Last touched chunk section world
+     */
+    private String m_lastTouchedWorld;
+
+    /**
+     * Last touched world sections
+     */
+    private LongIntHashMap m_lastTouchedSections;
+
     /**
      * All job state changed events
      */
@@ -155,6 +245,223 @@ public class BlockPlacerJobEntry extends BlockPlacerEntry {
         callStateChangedEvents();
     }
 
+    /**
+     * Get the number of job blocks in the queue
+     *
+     * @return
+     */
+    public int getQueuedBlocks() {
+        int result = 0;
+        for (int i = 0; i < m_queuedBlocks.length(); i++) {
+            result += m_queuedBlocks.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of job blocks in the queue lane
+     *
+     * @param lane
+     * @return
+     */
+    public int getQueuedBlocks(QueueLane lane) {
+        return m_queuedBlocks.get(lane.ordinal());
+    }
+
+    /**
+     * Update the number of job blocks in the queue lane
+     *
+     * @param lane
+     * @param delta
+     */
+    public void updateQueuedBlocks(QueueLane lane, int delta) {
+        m_queuedBlocks.addAndGet(lane.ordinal(), delta);
+        if (delta > 0) {
+            m_totalBlocks.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Add time the job producer spent waiting for a locked queue
+     *
+     * @param time wait time (ms)
+     */
+    public void addBlockedTime(long time) {
+        m_blockedTime.addAndGet(time);
+        m_blockedCount.incrementAndGet();
+    }
+
+    /**
+     * Get the time the job producer spent waiting for a locked queue
+     *
+     * @return wait time (ms)
+     */
+    public long getBlockedTime() {
+        return m_blockedTime.get();
+    }
+
+    /**
+     * Get the number of times the job producer waited for a locked queue
+     *
+     * @return
+     */
+    public int getBlockedCount() {
+        return m_blockedCount.get();
+    }
+
+    /**
+     * Is the job physics frozen using the bounding box, the mode is
+     * decided when the job adds its first block
+     *
+     * @param job the job, may by null
+     * @return
+     */
+    public static boolean isBoxFrozen(BlockPlacerJobEntry job) {
+        if (job == null) {
+            return false;
+        }
+
+        int mode = job.m_freezeMode;
+        if (mode == 0) {
+            synchronized (job) {
+                mode = job.m_freezeMode;
+                if (mode == 0) {
+                    mode = ConfigProvider.getPhysicsFreezMode() == PhysicsWatch.FreezeMode.Box ? 1 : 2;
+                    job.m_freezeMode = mode;
+                }
+            }
+        }
+        return mode == 1;
+    }
+
+    /**
+     * Grow the job frozen bounding box of the world to include the block
+     *
+     * @param physicsWatcher
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void freezeBlock(PhysicsWatch physicsWatcher, String world, int x, int y, int z) {
+        FreezeBox freezeBox = m_lastFreezeBox;
+        if (freezeBox == null || !world.equals(freezeBox.m_world)) {
+            synchronized (this) {
+                if (m_isThawed) {
+                    return;
+                }
+                if (m_freezeBoxes == null) {
+                    m_freezeBoxes = new HashMap<String, FreezeBox>();
+                }
+                freezeBox = m_freezeBoxes.get(world);
+                if (freezeBox == null) {
+                    freezeBox = new FreezeBox(world, new BoundingBox());
+                    physicsWatcher.addRegion(world, freezeBox.m_box);
+                    m_freezeBoxes.put(world, freezeBox);
+                }
+                m_lastFreezeBox = freezeBox;
+            }
+        }
+        freezeBox.m_box.extend(x, y, z);
+    }
+
+    /**
+     * Release the job frozen bounding boxes, blocks added later are not
+     * frozen
+     *
+     * @param physicsWatcher
+     */
+    public void unfreeze(PhysicsWatch physicsWatcher) {
+        final HashMap<String, FreezeBox> boxes;
+        synchronized (this) {
+            m_isThawed = true;
+            boxes = m_freezeBoxes;
+            m_freezeBoxes = null;
+            m_lastFreezeBox = null;
+        }
+
+        if (boxes != null) {
+            for (FreezeBox freezeBox : boxes.values()) {
+                physicsWatcher.removeRegion(freezeBox.m_world, freezeBox.m_box);
+            }
+        }
+    }
+
+    /**
+     * Remember the chunk section changed by the job
+     *
+     * @param world
+     * @param x
+     * @param y
+     * @param z
+     */
+    public synchronized void touch(String world, int x, int y, int z) {
+        final long key = PackedPosition.pack(x >> 4, y >> 4, z >> 4);
+        if (m_touched == null) {
+            m_touched = new HashMap<String, LongIntHashMap>();
+        }
+
+        LongIntHashMap sections = m_lastTouchedSections;
+        if (sections == null || !world.equals(m_lastTouchedWorld)) {
+            sections = m_touched.get(world);
+            if (sections == null) {
+                sections = new LongIntHashMap(0);
+                m_touched.put(world, sections);
+            }
+            m_lastTouchedWorld = world;
+            m_lastTouchedSections = sections;
+        } else if (key == m_lastTouched) {
+            return;
+        }
+
+        sections.put(key, 1);
+        m_lastTouched = key;
+    }
+
+    /**
+     * Get and forget the chunk sections changed by the job
+     *
+     * @return packed section coordinates per world or null if the job did
+     * not change any blocks
+     */
+    public synchronized Map<String, long[]> takeTouchedSections() {
+        final HashMap<String, LongIntHashMap> touched = m_touched;
+        m_touched = null;
+        m_lastTouchedWorld = null;
+        m_lastTouchedSections = null;
+        if (touched == null) {
+            return null;
+        }
+
+        final Map<String, long[]> result = new HashMap<String, long[]>();
+        for (Map.Entry<String, LongIntHashMap> entry : touched.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().keys());
+        }
+        return result;
+    }
+
+    /**
+     * Get the queue lane for new job entries. Interactive jobs are moved to
+     * the bulk lane when they exceed the interactive job size.
+     *
+     * @return
+     */
+    public QueueLane getLane() {
+        QueueLane lane = m_lane;
+        if (lane == null) {
+            lane = (this instanceof BlockPlacerUndoJob || "redo".equals(m_name))
+                    ? QueueLane.Undo : QueueLane.Interactive;
+            m_lane = lane;
+        }
+        if (lane == QueueLane.Interactive
+                && m_totalBlocks.get() > ConfigProvider.getInteractiveJobSize()) {
+            lane = QueueLane.Bulk;
+            m_lane = lane;
+        }
+
+        return lane;
+    }
+
     /**
      * Is the job started
      *
@@ -185,6 +492,15 @@ public class BlockPlacerJobEntry extends BlockPlacerEntry {
         }
     }
 
+    /**
+     * Is the job canceled
+     *
+     * @return
+     */
+    public boolean isCanceled() {
+        return m_cEditSession != null && m_cEditSession.isCanceled();
+    }
+
     /**
      * Get job status order code
      *
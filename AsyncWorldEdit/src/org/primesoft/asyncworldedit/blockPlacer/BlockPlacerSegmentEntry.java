@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import org.bukkit.World;
+import org.primesoft.asyncworldedit.PhysicsWatch;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+import org.primesoft.asyncworldedit.worldedit.AsyncEditSession;
+
+/**
+ * A range of blocks fetched from a packed block segment
+ *
+ * @author SBPrime
+ */
+public class BlockPlacerSegmentEntry extends BlockPlacerEntry {
+
+    private final BlockPlacerJobEntry m_job;
+    private final long[] m_positions;
+    private final int[] m_blocks;
+    private final int m_from;
+    private final int m_to;
+
+    public BlockPlacerSegmentEntry(AsyncEditSession editSession, int jobId,
+            BlockPlacerJobEntry job, long[] positions, int[] blocks, int from, int to) {
+        super(editSession, jobId);
+        m_job = job;
+        m_positions = positions;
+        m_blocks = blocks;
+        m_from = from;
+        m_to = to;
+    }
+
+    /**
+     * Packed block positions
+     * @return 
+     */
+    public long[] getPositions() {
+        return m_positions;
+    }
+
+    /**
+     * Packed blocks
+     * @return 
+     */
+    public int[] getBlocks() {
+        return m_blocks;
+    }
+
+    /**
+     * First block index (inclusive)
+     * @return 
+     */
+    public int getFrom() {
+        return m_from;
+    }
+
+    /**
+     * Last block index (exclusive)
+     * @return 
+     */
+    public int getTo() {
+        return m_to;
+    }
+
+    @Override
+    public boolean isDemanding() {
+        return false;
+    }
+
+    @Override
+    public int getSize() {
+        return m_to - m_from;
+    }
+
+    @Override
+    public void Process(BlockPlacer bp) {
+        final World world = m_editSession.getCBWorld();
+        final String name = world != null && !BlockPlacerJobEntry.isBoxFrozen(m_job)
+                ? world.getName() : null;
+        final PhysicsWatch physicsWatcher = bp.getPhysicsWatcher();
+
+        for (int i = m_from; i < m_to; i++) {
+            final long position = m_positions[i];
+            final int x = PackedPosition.getX(position);
+            final int y = PackedPosition.getY(position);
+            final int z = PackedPosition.getZ(position);
+
+            final int block = m_blocks[i];
+            m_editSession.doRawSetBlock(x, y, z, block >>> 8, block & 0xff);
+            if (name != null) {
+                physicsWatcher.removeLocation(name, x, y, z);
+            }
+        }
+    }
+}
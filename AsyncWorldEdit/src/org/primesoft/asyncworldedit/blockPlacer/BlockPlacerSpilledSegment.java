@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import java.io.IOException;
+import org.primesoft.asyncworldedit.PhysicsWatch;
+import org.primesoft.asyncworldedit.PluginMain;
+
+/**
+ * Block segment stored in the spill file. The segment is loaded back when
+ * it reaches the queue head.
+ *
+ * @author SBPrime
+ */
+public class BlockPlacerSpilledSegment extends BlockPlacerEntry {
+
+    /**
+     * The spill file
+     */
+    private final SpillFile m_file;
+
+    /**
+     * Record offset
+     */
+    private final long m_offset;
+
+    /**
+     * Number of blocks
+     */
+    private final int m_count;
+
+    /**
+     * The segment job (may by null)
+     */
+    private final BlockPlacerJobEntry m_job;
+
+    /**
+     * The loaded segment
+     */
+    private BlockPlacerBlockSegment m_segment;
+
+    public BlockPlacerSpilledSegment(SpillFile file, long offset,
+            BlockPlacerBlockSegment segment) {
+        super(segment.getEditSession(), segment.getJobId());
+
+        m_file = file;
+        m_offset = offset;
+        m_count = segment.getBlockCount();
+        m_job = segment.getJob();
+        m_segment = null;
+    }
+
+    /**
+     * Number of blocks in the segment
+     *
+     * @return
+     */
+    public int getBlockCount() {
+        return m_count;
+    }
+
+    /**
+     * Number of blocks not yet handed to the block placer
+     *
+     * @return
+     */
+    public int getRemaining() {
+        return m_segment != null ? m_segment.getRemaining() : m_count;
+    }
+
+    /**
+     * The segment job
+     *
+     * @return job entry or null if not found
+     */
+    public BlockPlacerJobEntry getJob() {
+        return m_job;
+    }
+
+    /**
+     * Is the segment loaded to memory
+     *
+     * @return
+     */
+    public boolean isLoaded() {
+        return m_segment != null;
+    }
+
+    /**
+     * Load the segment from the spill file
+     *
+     * @return
+     * @throws IOException
+     */
+    public BlockPlacerBlockSegment load() throws IOException {
+        if (m_segment == null) {
+            long[] positions = new long[m_count];
+            int[] blocks = new int[m_count];
+
+            m_file.read(m_offset, positions, blocks, m_count);
+            m_segment = new BlockPlacerBlockSegment(m_editSession, getJobId(), m_job,
+                    positions, blocks);
+        }
+
+        return m_segment;
+    }
+
+    /**
+     * Get the loaded segment
+     *
+     * @return segment or null if not loaded
+     */
+    public BlockPlacerBlockSegment getSegment() {
+        return m_segment;
+    }
+
+    /**
+     * Remove blocks from the physics watcher, the blocks are not kept
+     * in memory
+     *
+     * @param physicsWatcher
+     */
+    public void removeLocations(PhysicsWatch physicsWatcher) {
+        if (BlockPlacerJobEntry.isBoxFrozen(m_job)) {
+            return;
+        }
+        if (m_segment != null) {
+            m_segment.removeLocations(physicsWatcher);
+            return;
+        }
+
+        try {
+            long[] positions = new long[m_count];
+            int[] blocks = new int[m_count];
+
+            m_file.read(m_offset, positions, blocks, m_count);
+            new BlockPlacerBlockSegment(m_editSession, getJobId(), m_job,
+                    positions, blocks).removeLocations(physicsWatcher);
+        } catch (IOException ex) {
+            PluginMain.log("Unable to load spilled blocks: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isDemanding() {
+        return false;
+    }
+
+    @Override
+    public void Process(BlockPlacer bp) {
+        try {
+            load().Process(bp);
+        } catch (IOException ex) {
+            PluginMain.log("Unable to load spilled blocks: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import org.bukkit.ChatColor;
+import org.bukkit.scheduler.BukkitTask;
+import org.primesoft.asyncworldedit.ConfigProvider;
+import org.primesoft.asyncworldedit.PluginMain;
+
+/**
+ * This class measures the server tick durations and adjusts the block placer
+ * speed to the current server load
+ *
+ * @author SBPrime
+ */
+public class BlockPlacerThrottle implements Runnable {
+
+    /**
+     * Throttle state
+     */
+    public enum ThrottleState {
+
+        Disabled,
+        Normal,
+        Lagging
+    }
+    /**
+     * Number of ticks used in the tick time AVG
+     */
+    private final static int TICK_SAMPLES = 40;
+    /**
+     * Expected tick duration (ns)
+     */
+    private final static long TICK_TIME = 1000000000L / ConfigProvider.TICKS_PER_SECOND;
+    /**
+     * Speed factor change when server has headroom
+     */
+    private final static double SPEED_UP_STEP = 0.05;
+    /**
+     * Speed factor change when the server is lagging
+     */
+    private final static double BACK_OFF_RATIO = 0.5;
+    /**
+     * Maximum interval increase when the server is lagging
+     */
+    private final static int MAX_INTERVAL_RATIO = 4;
+    /**
+     * Tick times (ns)
+     */
+    private final long[] m_tickTimes = new long[TICK_SAMPLES];
+    /**
+     * Current tick sample
+     */
+    private int m_tickPos;
+    /**
+     * Sum of all tick samples
+     */
+    private long m_tickSum;
+    /**
+     * Number of collected tick samples
+     */
+    private int m_tickCount;
+    /**
+     * Last tick time stamp
+     */
+    private long m_lastTick;
+    /**
+     * The tick measure task
+     */
+    private BukkitTask m_task;
+    /**
+     * Current throttle state
+     */
+    private ThrottleState m_state;
+    /**
+     * Current speed factor
+     */
+    private double m_speed;
+    /**
+     * Measured TPS
+     */
+    private double m_tps;
+
+    /**
+     * Initialize new instance of the throttle
+     *
+     * @param plugin parent
+     */
+    public BlockPlacerThrottle(PluginMain plugin) {
+        m_speed = 1;
+        m_tps = ConfigProvider.TICKS_PER_SECOND;
+
+        if (ConfigProvider.isThrottleEnabled()) {
+            m_state = ThrottleState.Normal;
+            m_task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+        } else {
+            m_state = ThrottleState.Disabled;
+            m_task = null;
+        }
+    }
+
+    /**
+     * Tick measure task
+     */
+    @Override
+    public void run() {
+        final long now = System.nanoTime();
+        if (m_lastTick != 0) {
+            final long delta = now - m_lastTick;
+
+            m_tickSum += delta - m_tickTimes[m_tickPos];
+            m_tickTimes[m_tickPos] = delta;
+            m_tickPos = (m_tickPos + 1) % TICK_SAMPLES;
+            if (m_tickCount < TICK_SAMPLES) {
+                m_tickCount++;
+            }
+        }
+        m_lastTick = now;
+    }
+
+    /**
+     * Stop the tick measurement
+     */
+    public void stop() {
+        if (m_task != null) {
+            m_task.cancel();
+            m_task = null;
+        }
+    }
+
+    /**
+     * Update the throttle state, this should by called once per block placer
+     * run
+     */
+    public void update() {
+        if (m_state == ThrottleState.Disabled || m_tickCount == 0) {
+            return;
+        }
+
+        final double avg = (double) m_tickSum / m_tickCount;
+        m_tps = Math.min(ConfigProvider.TICKS_PER_SECOND, ConfigProvider.TICKS_PER_SECOND * TICK_TIME / avg);
+
+        if (m_tps < ConfigProvider.getThrottleTpsLow()) {
+            m_state = ThrottleState.Lagging;
+            m_speed = Math.max(ConfigProvider.getThrottleMinSpeed(), m_speed * BACK_OFF_RATIO);
+        } else if (m_tps >= ConfigProvider.getThrottleTpsHigh()) {
+            m_state = ThrottleState.Normal;
+            m_speed = Math.min(ConfigProvider.getThrottleMaxSpeed(), m_speed + SPEED_UP_STEP);
+        }
+    }
+
+    /**
+     * Get the current throttle state
+     *
+     * @return
+     */
+    public ThrottleState getState() {
+        return m_state;
+    }
+
+    /**
+     * Is the server lagging (low priority jobs should by paused)
+     *
+     * @return
+     */
+    public boolean isLagging() {
+        return m_state == ThrottleState.Lagging;
+    }
+
+    /**
+     * Get the current speed factor
+     *
+     * @return
+     */
+    public double getSpeed() {
+        return m_speed;
+    }
+
+    /**
+     * Get the measured server TPS
+     *
+     * @return
+     */
+    public double getTps() {
+        return m_tps;
+    }
+
+    /**
+     * Scale the number of blocks (or time budget) using the current speed
+     * factor
+     *
+     * @param value base value
+     * @return
+     */
+    public long scale(long value) {
+        if (m_state == ThrottleState.Disabled || value <= 0) {
+            return value;
+        }
+
+        return Math.max(1, Math.round(value * m_speed));
+    }
+
+    /**
+     * Scale the number of blocks using the current speed factor
+     *
+     * @param value base value
+     * @return
+     */
+    public int scale(int value) {
+        return (int) scale((long) value);
+    }
+
+    /**
+     * Get the block placing interval for the current state
+     *
+     * @param interval base interval
+     * @return
+     */
+    public long getInterval(long interval) {
+        if (m_state != ThrottleState.Lagging || m_speed >= 1) {
+            return interval;
+        }
+
+        return Math.min(interval * MAX_INTERVAL_RATIO, Math.round(interval / m_speed));
+    }
+
+    /**
+     * Get the throttle status message
+     *
+     * @param interval current block placer interval
+     * @return
+     */
+    public String getStatusMessage(long interval) {
+        final String format = ChatColor.YELLOW + "Throttle: " + ChatColor.WHITE + "%s"
+                + ChatColor.YELLOW + ", TPS: " + ChatColor.WHITE + "%.2f"
+                + ChatColor.YELLOW + ", speed: " + ChatColor.WHITE + "%.0f%%"
+                + ChatColor.YELLOW + ", interval: " + ChatColor.WHITE + "%d"
+                + ChatColor.YELLOW + " ticks.";
+
+        return String.format(format, m_state.toString().toLowerCase(),
+                m_tps, m_speed * 100, interval);
+    }
+}
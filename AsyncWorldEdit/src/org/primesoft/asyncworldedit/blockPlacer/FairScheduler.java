@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import java.util.List;
+import org.primesoft.asyncworldedit.ConfigProvider;
+
+/**
+ * Deficit round robin scheduler. Each player gets a number of entries
+ * proportional to his weight, entries are fetched in batches. Paused players
+ * (weight 0) get one quantum per fetch, so their job entries, finished jobs
+ * and queue unlocks are still processed.
+ *
+ * @author SBPrime
+ */
+public class FairScheduler implements IBlockPlacerScheduler {
+
+    /**
+     * Position of the first player in the next fetch
+     */
+    private int m_keyPos;
+
+    @Override
+    public boolean fetchBlocks(BlockPlacer blockPlacer, int blockCnt, String[] playerNames,
+            List<BlockPlacerEntry> entries, List<BlockPlacerJobEntry> jobsToCancel) {
+        if (blockCnt <= 0 || playerNames == null || playerNames.length == 0) {
+            return false;
+        }
+
+        final int quantum = ConfigProvider.getSchedulerQuantum();
+        final int length = playerNames.length;
+        final PlayerEntry[] players = new PlayerEntry[length];
+        int active = 0;
+        for (int i = 0; i < length; i++) {
+            PlayerEntry playerEntry = blockPlacer.getPlayerEvents(playerNames[i]);
+            if (playerEntry != null) {
+                players[i] = playerEntry;
+                active++;
+            }
+        }
+
+        int remaining = blockCnt;
+        int keyPos = m_keyPos % length;
+        boolean result = false;
+        while (remaining > 0 && active > 0) {
+            final PlayerEntry playerEntry = players[keyPos];
+            if (playerEntry != null) {
+                final int weight = playerEntry.getWeight();
+                int deficit = weight > 0 ? playerEntry.getDeficit() + quantum * weight : quantum;
+                int fetched = blockPlacer.fetchEntries(playerNames[keyPos], playerEntry,
+                        Math.min(deficit, remaining), entries, jobsToCancel);
+
+                remaining -= fetched;
+                if (fetched > 0) {
+                    result = true;
+                    if (entries.get(entries.size() - 1).isDemanding()) {
+                        playerEntry.setDeficit(weight > 0 ? deficit - fetched : 0);
+                        break;
+                    }
+                }
+
+                if (fetched == 0 || weight == 0 || playerEntry.isQueueEmpty()) {
+                    playerEntry.setDeficit(0);
+                    players[keyPos] = null;
+                    active--;
+                } else {
+                    playerEntry.setDeficit(deficit - fetched);
+                }
+            }
+            keyPos = (keyPos + 1) % length;
+        }
+
+        m_keyPos = keyPos;
+        return result;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import java.util.List;
+
+/**
+ * Block placer scheduler, selects the entries that are going to by placed in
+ * a block placer run
+ *
+ * @author SBPrime
+ */
+public interface IBlockPlacerScheduler {
+
+    /**
+     * Fetch the entries that are going to by placed
+     *
+     * @param blockPlacer the block placer
+     * @param blockCnt maximum number of entries to fetch
+     * @param playerNames players that have queued entries
+     * @param entries destination entries list
+     * @param jobsToCancel destination list for finished jobs
+     * @return true if any entries were fetched
+     */
+    boolean fetchBlocks(BlockPlacer blockPlacer, int blockCnt, String[] playerNames,
+            List<BlockPlacerEntry> entries, List<BlockPlacerJobEntry> jobsToCancel);
+}
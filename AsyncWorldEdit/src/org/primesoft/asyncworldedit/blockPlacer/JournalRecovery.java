@@ -0,0 +1,496 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+import org.primesoft.asyncworldedit.ConfigProvider;
+import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+
+/**
+ * Recovery of the jobs left unfinished in the placement journal. The
+ * unfinished jobs can by rolled back, rolled forward or discarded.
+ *
+ * @author SBPrime
+ */
+public class JournalRecovery implements Runnable {
+
+    /**
+     * Recovery file extension
+     */
+    private final static String RECOVER_EXT = ".recover";
+
+    /**
+     * Size of a single journaled block
+     */
+    private final static int BLOCK_SIZE = 16;
+
+    /**
+     * Unfinished journal job
+     */
+    private static class JournalJob {
+
+        final String player;
+        final String world;
+        final String name;
+        boolean done;
+        int blocks;
+
+        JournalJob(String player, String world, String name) {
+            this.player = player;
+            this.world = world;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Journaled blocks batch
+     */
+    private static class JournalBatch {
+
+        final int file;
+        final long offset;
+        final int count;
+        final JournalJob job;
+
+        JournalBatch(int file, long offset, int count, JournalJob job) {
+            this.file = file;
+            this.offset = offset;
+            this.count = count;
+            this.job = job;
+        }
+    }
+
+    /**
+     * Input stream that counts the read bytes
+     */
+    private static class CountingStream extends FilterInputStream {
+
+        private long m_position;
+
+        CountingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result >= 0) {
+                m_position++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                m_position += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long result = super.skip(n);
+            m_position += result;
+            return result;
+        }
+    }
+
+    /**
+     * Move the last journal to the recovery files and scan all recovery
+     * files
+     *
+     * @return the recovery or null if there are no unfinished jobs
+     */
+    public static JournalRecovery load() {
+        final File journal = PlacementJournal.getFile();
+        final File folder = journal.getParentFile();
+        if (journal.exists()) {
+            File recover = new File(folder, "journal-" + System.currentTimeMillis() + RECOVER_EXT);
+            if (!journal.renameTo(recover)) {
+                PluginMain.log("Unable to rename " + journal);
+            }
+        }
+
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return null;
+        }
+
+        final List<File> recoverFiles = new ArrayList<File>();
+        for (File f : files) {
+            if (f.isFile() && f.getName().startsWith("journal-") && f.getName().endsWith(RECOVER_EXT)) {
+                recoverFiles.add(f);
+            }
+        }
+        if (recoverFiles.isEmpty()) {
+            return null;
+        }
+
+        File[] sorted = recoverFiles.toArray(new File[0]);
+        Arrays.sort(sorted);
+        JournalRecovery result = new JournalRecovery(sorted);
+        if (result.m_jobs.isEmpty()) {
+            result.deleteFiles();
+            return null;
+        }
+
+        PluginMain.log("Found " + result.m_jobs.size() + " unfinished jobs in the placement journal, use "
+                + "/awe journal rollback|forward|discard");
+        return result;
+    }
+
+    /**
+     * The recovery files
+     */
+    private final File[] m_files;
+
+    /**
+     * Unfinished jobs
+     */
+    private final List<JournalJob> m_jobs;
+
+    /**
+     * Journaled batches of the unfinished jobs (journal order)
+     */
+    private final List<JournalBatch> m_batches;
+
+    /**
+     * Open recovery files
+     */
+    private RandomAccessFile[] m_access;
+
+    /**
+     * The recovery task
+     */
+    private BukkitTask m_task;
+
+    /**
+     * Is the recovery rolling back
+     */
+    private boolean m_rollback;
+
+    /**
+     * Number of processed batches
+     */
+    private int m_processed;
+
+    /**
+     * The player that started the recovery
+     */
+    private String m_player;
+
+    private JournalRecovery(File[] files) {
+        m_files = files;
+        m_jobs = new ArrayList<JournalJob>();
+        m_batches = new ArrayList<JournalBatch>();
+
+        for (int i = 0; i < files.length; i++) {
+            scan(i);
+        }
+
+        for (int i = m_batches.size() - 1; i >= 0; i--) {
+            if (m_batches.get(i).job.done) {
+                m_batches.remove(i);
+            }
+        }
+        for (int i = m_jobs.size() - 1; i >= 0; i--) {
+            if (m_jobs.get(i).done) {
+                m_jobs.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Scan the recovery file
+     *
+     * @param fileIdx
+     */
+    private void scan(int fileIdx) {
+        final File file = m_files[fileIdx];
+        final long length = file.length();
+        final HashMap<Integer, JournalJob> jobs = new HashMap<Integer, JournalJob>();
+
+        DataInputStream in = null;
+        try {
+            CountingStream counter = new CountingStream(new BufferedInputStream(new FileInputStream(file)));
+            in = new DataInputStream(counter);
+            if (in.readInt() != PlacementJournal.MAGIC || in.readInt() != PlacementJournal.VERSION) {
+                PluginMain.log("Unsupported journal file " + file.getName());
+                return;
+            }
+
+            while (true) {
+                byte type = in.readByte();
+                int key = in.readInt();
+                switch (type) {
+                    case PlacementJournal.REC_START: {
+                        JournalJob job = new JournalJob(in.readUTF(), in.readUTF(), in.readUTF());
+                        jobs.put(key, job);
+                        m_jobs.add(job);
+                        break;
+                    }
+                    case PlacementJournal.REC_BLOCKS: {
+                        int count = in.readInt();
+                        long offset = counter.m_position;
+                        if (offset + (long) count * BLOCK_SIZE > length) {
+                            //Partial record written before the crash
+                            return;
+                        }
+
+                        JournalJob job = jobs.get(key);
+                        if (job != null) {
+                            job.blocks += count;
+                            m_batches.add(new JournalBatch(fileIdx, offset, count, job));
+                        }
+                        skipFully(in, (long) count * BLOCK_SIZE);
+                        break;
+                    }
+                    case PlacementJournal.REC_END: {
+                        JournalJob job = jobs.get(key);
+                        if (job != null) {
+                            job.done = true;
+                        }
+                        break;
+                    }
+                    default:
+                        PluginMain.log("Invalid journal record in " + file.getName());
+                        return;
+                }
+            }
+        } catch (EOFException ex) {
+            //End of the journal
+        } catch (IOException ex) {
+            PluginMain.log("Error reading journal file " + file.getName() + ": " + ex.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Skip the bytes in the stream
+     *
+     * @param in
+     * @param count
+     * @throws IOException
+     */
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Is the recovery running
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return m_task != null;
+    }
+
+    /**
+     * Print the unfinished jobs
+     *
+     * @param lines
+     */
+    public void printJobs(List<String> lines) {
+        lines.add(ChatColor.YELLOW + "Unfinished journal jobs: ");
+        for (JournalJob job : m_jobs) {
+            lines.add(ChatColor.YELLOW + " * " + ChatColor.WHITE + job.player
+                    + ChatColor.YELLOW + " - " + ChatColor.WHITE + job.name
+                    + ChatColor.YELLOW + " in " + ChatColor.WHITE + job.world
+                    + ChatColor.YELLOW + ", " + ChatColor.WHITE + job.blocks
+                    + ChatColor.YELLOW + " blocks placed");
+        }
+    }
+
+    /**
+     * Start the recovery task
+     *
+     * @param plugin
+     * @param player the player that started the recovery
+     * @param rollback true to restore the old blocks, false to place the new
+     * blocks again
+     */
+    public void start(PluginMain plugin, Player player, boolean rollback) {
+        if (m_task != null) {
+            return;
+        }
+
+        m_access = new RandomAccessFile[m_files.length];
+        try {
+            for (int i = 0; i < m_files.length; i++) {
+                m_access[i] = new RandomAccessFile(m_files[i], "r");
+            }
+        } catch (IOException ex) {
+            PluginMain.log("Error opening the journal: " + ex.getMessage());
+            closeFiles();
+            return;
+        }
+
+        m_player = player != null ? player.getName() : null;
+        m_rollback = rollback;
+        m_processed = 0;
+        m_task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+    }
+
+    /**
+     * Remove the journal files without recovery
+     */
+    public void discard() {
+        if (m_task != null) {
+            return;
+        }
+
+        deleteFiles();
+        m_jobs.clear();
+        m_batches.clear();
+    }
+
+    @Override
+    public void run() {
+        int budget = ConfigProvider.getBlockCount();
+        try {
+            while (budget > 0 && m_processed < m_batches.size()) {
+                int idx = m_rollback ? m_batches.size() - 1 - m_processed : m_processed;
+                budget -= apply(m_batches.get(idx));
+                m_processed++;
+            }
+        } catch (IOException ex) {
+            PluginMain.log("Error reading the journal: " + ex.getMessage());
+            m_task.cancel();
+            m_task = null;
+            closeFiles();
+            return;
+        }
+
+        if (m_processed < m_batches.size()) {
+            return;
+        }
+
+        m_task.cancel();
+        m_task = null;
+        closeFiles();
+        deleteFiles();
+
+        String message = "Journal " + (m_rollback ? "rollback" : "roll forward") + " done, "
+                + m_jobs.size() + " jobs recovered.";
+        PluginMain.log(message);
+        if (m_player != null) {
+            PluginMain.say(m_player, ChatColor.YELLOW + message);
+        }
+        m_jobs.clear();
+        m_batches.clear();
+    }
+
+    /**
+     * Apply the journaled batch to the world
+     *
+     * @param batch
+     * @return number of blocks
+     * @throws IOException
+     */
+    private int apply(JournalBatch batch) throws IOException {
+        final World world = PluginMain.getInstance().getServer().getWorld(batch.job.world);
+        if (world == null) {
+            return batch.count;
+        }
+
+        final byte[] data = new byte[batch.count * BLOCK_SIZE];
+        final RandomAccessFile file = m_access[batch.file];
+        file.seek(batch.offset);
+        file.readFully(data);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (int i = 0; i < batch.count; i++) {
+            int idx = (m_rollback ? batch.count - 1 - i : i) * BLOCK_SIZE;
+            long position = buffer.getLong(idx);
+            int block = buffer.getInt(idx + (m_rollback ? 8 : 12));
+
+            world.getBlockAt(PackedPosition.getX(position), PackedPosition.getY(position),
+                    PackedPosition.getZ(position)).setTypeIdAndData(block >>> 8, (byte) (block & 0xff), false);
+        }
+
+        return batch.count;
+    }
+
+    /**
+     * Close the open recovery files
+     */
+    private void closeFiles() {
+        if (m_access == null) {
+            return;
+        }
+
+        for (RandomAccessFile file : m_access) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+        m_access = null;
+    }
+
+    /**
+     * Remove the recovery files
+     */
+    private void deleteFiles() {
+        for (File file : m_files) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.scheduler.BukkitTask;
+import org.primesoft.asyncworldedit.ConfigProvider;
+import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+
+/**
+ * Applies the physics frozen by the physics watch to the chunk sections
+ * changed by finished jobs. The sections are processed on the main thread
+ * in a per-tick time budget.
+ *
+ * @author SBPrime
+ */
+public class PhysicsSettler implements Runnable {
+
+    /**
+     * Number of nanoseconds in one millisecond
+     */
+    private final static long NANOS_PER_MS = 1000000;
+
+    /**
+     * Number of section blocks processed between the time budget checks
+     */
+    private final static int BATCH_SIZE = 256;
+
+    /**
+     * Blocks that need a physics update to settle
+     */
+    private final static boolean[] SETTLE = new boolean[4096];
+
+    static {
+        int[] ids = new int[]{
+            8, 9, 10, 11, 12, 13, 55, 75, 76, 93, 94, 145
+        };
+        for (int id : ids) {
+            SETTLE[id] = true;
+        }
+    }
+
+    /**
+     * A section to settle
+     */
+    private static class Section {
+
+        private final String m_world;
+        private final long m_key;
+
+        public Section(String world, long key) {
+            m_world = world;
+            m_key = key;
+        }
+    }
+
+    private final PluginMain m_plugin;
+
+    /**
+     * Sections to settle
+     */
+    private final ArrayDeque<Section> m_sections = new ArrayDeque<Section>();
+
+    /**
+     * The settle task
+     */
+    private BukkitTask m_task;
+
+    /**
+     * Next block in the current section
+     */
+    private int m_position;
+
+    /**
+     * Initialize new instance of the physics settler
+     *
+     * @param plugin parent
+     */
+    public PhysicsSettler(PluginMain plugin) {
+        m_plugin = plugin;
+    }
+
+    /**
+     * Number of sections waiting for the physics update
+     *
+     * @return
+     */
+    public int size() {
+        synchronized (m_sections) {
+            return m_sections.size();
+        }
+    }
+
+    /**
+     * Schedule the physics update of the sections changed by the job
+     *
+     * @param job
+     */
+    public void settle(BlockPlacerJobEntry job) {
+        final Map<String, long[]> sections = job.takeTouchedSections();
+        if (sections == null) {
+            return;
+        }
+
+        synchronized (m_sections) {
+            for (Map.Entry<String, long[]> entry : sections.entrySet()) {
+                for (long key : entry.getValue()) {
+                    m_sections.add(new Section(entry.getKey(), key));
+                }
+            }
+
+            if (m_task == null) {
+                m_task = m_plugin.getServer().getScheduler().runTaskTimer(m_plugin, this, 1, 1);
+            }
+        }
+    }
+
+    /**
+     * Stop the physics settler, the waiting sections are dropped
+     */
+    public void stop() {
+        synchronized (m_sections) {
+            if (m_task != null) {
+                m_task.cancel();
+                m_task = null;
+            }
+            m_sections.clear();
+            m_position = 0;
+        }
+    }
+
+    @Override
+    public void run() {
+        synchronized (m_sections) {
+            doRun();
+        }
+    }
+
+    private void doRun() {
+        final long budget = ConfigProvider.getPhysicsSettleBudget() * NANOS_PER_MS;
+        final long start = System.nanoTime();
+
+        while (!m_sections.isEmpty() && System.nanoTime() - start < budget) {
+            final Section section = m_sections.peek();
+            final World world = m_plugin.getServer().getWorld(section.m_world);
+            if (world == null || !processBatch(world, section.m_key)) {
+                m_sections.poll();
+                m_position = 0;
+            }
+        }
+
+        if (m_sections.isEmpty() && m_task != null) {
+            m_task.cancel();
+            m_task = null;
+        }
+    }
+
+    /**
+     * Settle the next blocks of the section
+     *
+     * @param world
+     * @param key packed section coordinates
+     * @return true if the section has more blocks
+     */
+    private boolean processBatch(World world, long key) {
+        final int bx = PackedPosition.getX(key) << 4;
+        final int by = PackedPosition.getY(key) << 4;
+        final int bz = PackedPosition.getZ(key) << 4;
+        final int maxY = world.getMaxHeight();
+
+        if (!world.isChunkLoaded(bx >> 4, bz >> 4)) {
+            return false;
+        }
+
+        final int end = Math.min(4096, m_position + BATCH_SIZE);
+        for (; m_position < end; m_position++) {
+            final int y = by + (m_position >> 8);
+            if (y >= maxY) {
+                return false;
+            }
+
+            final int x = bx + (m_position & 15);
+            final int z = bz + ((m_position >> 4) & 15);
+            final int type = world.getBlockTypeIdAt(x, y, z);
+            if (type <= 0 || type >= SETTLE.length || !SETTLE[type]) {
+                continue;
+            }
+
+            //Re-place the block to notify it and its neighbours
+            final Block block = world.getBlockAt(x, y, z);
+            final byte data = block.getData();
+            block.setTypeIdAndData(0, (byte) 0, false);
+            block.setTypeIdAndData(type, data, true);
+        }
+
+        return m_position < 4096;
+    }
+}
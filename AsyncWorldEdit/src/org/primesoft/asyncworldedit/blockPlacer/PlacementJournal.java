@@ -0,0 +1,376 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import com.sk89q.worldedit.Vector;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+
+/**
+ * Append-only journal of the placed blocks. The old block state of each
+ * placed batch is written before the batch is placed, the journal is
+ * flushed once per block placer run and synced on a configurable cadence.
+ *
+ * @author SBPrime
+ */
+public class PlacementJournal {
+
+    /**
+     * File magic number
+     */
+    final static int MAGIC = 0x41574a4c;
+
+    /**
+     * File format version
+     */
+    final static int VERSION = 1;
+
+    /**
+     * The journal file name
+     */
+    final static String FILE_NAME = "journal.bin";
+
+    /**
+     * Job start record: key, player, world, job name
+     */
+    final static byte REC_START = 1;
+
+    /**
+     * Blocks record: key, count, (packed position, old block, new block)
+     */
+    final static byte REC_BLOCKS = 2;
+
+    /**
+     * Job end record: key
+     */
+    final static byte REC_END = 3;
+
+    /**
+     * Stream buffer size
+     */
+    private final static int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Get the journal file
+     *
+     * @return
+     */
+    static File getFile() {
+        return new File(PluginMain.getInstance().getDataFolder(), FILE_NAME);
+    }
+
+    /**
+     * Open a new journal
+     *
+     * @param syncInterval the sync interval (ms)
+     * @return the journal or null if the journal cannot by created
+     */
+    public static PlacementJournal open(int syncInterval) {
+        try {
+            return new PlacementJournal(getFile(), syncInterval);
+        } catch (IOException ex) {
+            PluginMain.log("Unable to create the placement journal: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The journal file
+     */
+    private final File m_file;
+
+    /**
+     * The file stream
+     */
+    private final FileOutputStream m_stream;
+
+    /**
+     * The file channel, used for sync
+     */
+    private final FileChannel m_channel;
+
+    /**
+     * The journal writer
+     */
+    private final DataOutputStream m_out;
+
+    /**
+     * Sync interval (ms)
+     */
+    private final int m_syncInterval;
+
+    /**
+     * Journal keys of the jobs that are not finished
+     */
+    private final HashMap<BlockPlacerJobEntry, Integer> m_activeJobs;
+
+    /**
+     * Next job key
+     */
+    private int m_nextKey;
+
+    /**
+     * Last sync time
+     */
+    private long m_lastSync;
+
+    /**
+     * Is there unsynced data
+     */
+    private boolean m_isDirty;
+
+    /**
+     * Is the journal closed
+     */
+    private boolean m_isClosed;
+
+    private PlacementJournal(File file, int syncInterval) throws IOException {
+        File folder = file.getParentFile();
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Unable to create folder " + folder);
+        }
+
+        m_file = file;
+        m_stream = new FileOutputStream(file);
+        m_channel = m_stream.getChannel();
+        m_out = new DataOutputStream(new BufferedOutputStream(m_stream, BUFFER_SIZE));
+        m_syncInterval = syncInterval;
+        m_activeJobs = new HashMap<BlockPlacerJobEntry, Integer>();
+        m_nextKey = 0;
+        m_lastSync = System.currentTimeMillis();
+        m_isDirty = false;
+        m_isClosed = false;
+
+        m_out.writeInt(MAGIC);
+        m_out.writeInt(VERSION);
+    }
+
+    /**
+     * Record the old state of the blocks that are going to by placed
+     *
+     * @param blockPlacer
+     * @param entries the block placer entries
+     */
+    public synchronized void record(BlockPlacer blockPlacer, List<BlockPlacerEntry> entries) {
+        if (m_isClosed) {
+            return;
+        }
+
+        try {
+            for (BlockPlacerEntry entry : entries) {
+                if (entry instanceof BlockPlacerSegmentEntry) {
+                    BlockPlacerSegmentEntry segment = (BlockPlacerSegmentEntry) entry;
+                    int key = getKey(blockPlacer, entry);
+                    if (key < 0) {
+                        continue;
+                    }
+
+                    final World world = entry.getEditSession().getCBWorld();
+                    final long[] positions = segment.getPositions();
+                    final int[] blocks = segment.getBlocks();
+                    m_out.writeByte(REC_BLOCKS);
+                    m_out.writeInt(key);
+                    m_out.writeInt(segment.getSize());
+                    for (int i = segment.getFrom(); i < segment.getTo(); i++) {
+                        writeBlock(world, positions[i], blocks[i]);
+                    }
+                    m_isDirty = true;
+                } else if (entry instanceof BlockPlacerBlockEntry) {
+                    BlockPlacerBlockEntry blockEntry = (BlockPlacerBlockEntry) entry;
+                    int key = getKey(blockPlacer, entry);
+                    if (key < 0) {
+                        continue;
+                    }
+
+                    final Vector location = blockEntry.getLocation();
+                    m_out.writeByte(REC_BLOCKS);
+                    m_out.writeInt(key);
+                    m_out.writeInt(1);
+                    writeBlock(entry.getEditSession().getCBWorld(), PackedPosition.pack(location),
+                            (blockEntry.getNewBlock().getType() << 8) | (blockEntry.getNewBlock().getData() & 0xff));
+                    m_isDirty = true;
+                }
+            }
+        } catch (IOException ex) {
+            onError(ex);
+        }
+    }
+
+    /**
+     * Write a single block
+     *
+     * @param world
+     * @param position
+     * @param newBlock
+     * @throws IOException
+     */
+    private void writeBlock(World world, long position, int newBlock) throws IOException {
+        final Block block = world.getBlockAt(PackedPosition.getX(position),
+                PackedPosition.getY(position), PackedPosition.getZ(position));
+
+        m_out.writeLong(position);
+        m_out.writeInt((block.getTypeId() << 8) | (block.getData() & 0xff));
+        m_out.writeInt(newBlock);
+    }
+
+    /**
+     * Get the journal key for the entry job, writes the job start record
+     * for new jobs
+     *
+     * @param blockPlacer
+     * @param entry
+     * @return the key or -1 if the entry is not journaled
+     * @throws IOException
+     */
+    private int getKey(BlockPlacer blockPlacer, BlockPlacerEntry entry) throws IOException {
+        final World world = entry.getEditSession() != null ? entry.getEditSession().getCBWorld() : null;
+        if (world == null) {
+            return -1;
+        }
+
+        final String player = entry.getEditSession().getPlayer();
+        final BlockPlacerJobEntry job = blockPlacer.getJob(player, entry.getJobId());
+        if (job == null) {
+            return -1;
+        }
+
+        Integer key = m_activeJobs.get(job);
+        if (key == null) {
+            key = m_nextKey++;
+            m_activeJobs.put(job, key);
+
+            m_out.writeByte(REC_START);
+            m_out.writeInt(key);
+            m_out.writeUTF(player);
+            m_out.writeUTF(world.getName());
+            m_out.writeUTF(job.getName());
+        }
+
+        return key;
+    }
+
+    /**
+     * Record the job end
+     *
+     * @param job
+     */
+    public synchronized void jobDone(BlockPlacerJobEntry job) {
+        if (m_isClosed) {
+            return;
+        }
+
+        Integer key = m_activeJobs.remove(job);
+        if (key == null) {
+            return;
+        }
+
+        try {
+            m_out.writeByte(REC_END);
+            m_out.writeInt(key);
+            m_isDirty = true;
+        } catch (IOException ex) {
+            onError(ex);
+        }
+    }
+
+    /**
+     * Flush the journal to the file, the file is synced when the sync
+     * interval elapsed. The journal is truncated when no jobs are active.
+     */
+    public synchronized void flush() {
+        if (m_isClosed || !m_isDirty) {
+            return;
+        }
+
+        try {
+            m_out.flush();
+            final long now = System.currentTimeMillis();
+            if (m_activeJobs.isEmpty()) {
+                m_channel.truncate(0);
+                m_out.writeInt(MAGIC);
+                m_out.writeInt(VERSION);
+                m_out.flush();
+                m_isDirty = false;
+            } else if (now - m_lastSync >= m_syncInterval) {
+                m_channel.force(false);
+                m_lastSync = now;
+                m_isDirty = false;
+            }
+        } catch (IOException ex) {
+            onError(ex);
+        }
+    }
+
+    /**
+     * Close the journal, the file is removed if all jobs are finished
+     *
+     * @param jobsResumed true if the unfinished jobs are going to by resumed
+     * and shuld not by recovered from the journal
+     */
+    public synchronized void close(boolean jobsResumed) {
+        if (m_isClosed) {
+            return;
+        }
+        if (jobsResumed) {
+            m_activeJobs.clear();
+        }
+
+        try {
+            m_out.flush();
+            m_channel.force(false);
+            m_out.close();
+        } catch (IOException ex) {
+            PluginMain.log("Error closing the placement journal: " + ex.getMessage());
+        }
+        m_isClosed = true;
+
+        if (m_activeJobs.isEmpty() && !m_file.delete()) {
+            m_file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Journal write error, the journal is disabled
+     *
+     * @param ex
+     */
+    private void onError(IOException ex) {
+        PluginMain.log("Placement journal disabled: " + ex.getMessage());
+        m_isClosed = true;
+        try {
+            m_out.close();
+        } catch (IOException ex2) {
+        }
+    }
+}
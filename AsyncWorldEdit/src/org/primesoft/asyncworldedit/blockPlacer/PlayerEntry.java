@@ -23,14 +23,26 @@
  */
 package org.primesoft.asyncworldedit.blockPlacer;
 
-import java.util.ArrayDeque;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import org.bukkit.ChatColor;
+import org.bukkit.World;
 import org.bukkit.entity.Player;
+import org.primesoft.asyncworldedit.ConfigProvider;
+import org.primesoft.asyncworldedit.PhysicsWatch;
 import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+import org.primesoft.asyncworldedit.worldedit.AsyncEditSession;
 
 /**
  * Operation queue player entry
@@ -48,9 +60,55 @@ public class PlayerEntry {
      */
     private final int AVG_SAMPLES = 5;
     /**
-     * The queue
+     * The queue lanes (multiple producers, block placer is the only
+     * consumer)
      */
-    private Queue<BlockPlacerEntry> m_queue;
+    private final Queue<BlockPlacerEntry>[] m_lanes;
+    /**
+     * Number of placer turns the lane was waiting (aging)
+     */
+    private final int[] m_laneWait;
+    /**
+     * Number of blocks in the queue (including the open segment)
+     */
+    private final AtomicInteger m_queueSize;
+    /**
+     * Number of blocks in all player queues
+     */
+    private final AtomicInteger m_globalQueueSize;
+    /**
+     * Number of queued blocks stored in the spill file
+     */
+    private final AtomicInteger m_spilledSize;
+    /**
+     * Number of blocks stored in all player spill files
+     */
+    private final AtomicInteger m_globalSpilledSize;
+    /**
+     * The spill file (producer lock required)
+     */
+    private SpillFile m_spillFile;
+    /**
+     * Was the spill file creation failed
+     */
+    private boolean m_spillFailed;
+    /**
+     * The producers lock, guards the open segment. The block placer never
+     * waits for this lock.
+     */
+    private final ReentrantLock m_producerLock;
+    /**
+     * The open block segment, not yet visible to the block placer
+     */
+    private BlockPlacerBlockSegment m_tailSegment;
+    /**
+     * The open block segment lane
+     */
+    private QueueLane m_tailLane;
+    /**
+     * Was this entry removed from the block placer
+     */
+    private boolean m_isRemoved;
     /**
      * Current block placing speed (blocks per second)
      */
@@ -70,31 +128,604 @@ public class PlayerEntry {
      */
     private boolean m_isInformed;
 
+    /**
+     * The scheduler weight
+     */
+    private int m_weight;
+
+    /**
+     * The scheduler deficit counter
+     */
+    private int m_deficit;
+
+    /**
+     * Number of blocks placed in the current run
+     */
+    private int m_placed;
+
     /**
      * Create new player entry
+     * @param globalQueueSize the global queue size counter
+     * @param globalSpilledSize the global spilled blocks counter
      */
-    public PlayerEntry() {
-        m_queue = new ArrayDeque();
+    public PlayerEntry(AtomicInteger globalQueueSize, AtomicInteger globalSpilledSize) {
+        final QueueLane[] lanes = QueueLane.values();
+        m_lanes = new Queue[lanes.length];
+        for (QueueLane lane : lanes) {
+            m_lanes[lane.ordinal()] = new ConcurrentLinkedQueue<BlockPlacerEntry>();
+        }
+        m_laneWait = new int[lanes.length];
+        m_queueSize = new AtomicInteger();
+        m_globalQueueSize = globalQueueSize;
+        m_spilledSize = new AtomicInteger();
+        m_globalSpilledSize = globalSpilledSize;
+        m_spillFile = null;
+        m_spillFailed = false;
+        m_producerLock = new ReentrantLock();
+        m_tailSegment = null;
+        m_isRemoved = false;
         m_speed = 0;
         m_jobId = 0;
         m_jobs = new HashMap<Integer, BlockPlacerJobEntry>();
     }
 
     /**
-     * Get block entries queue
+     * Are there no entries visible to the block placer
      * @return
      */
-    public Queue<BlockPlacerEntry> getQueue() {
-        return m_queue;
+    public boolean isQueueEmpty() {
+        for (Queue<BlockPlacerEntry> queue : m_lanes) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    
+    /**
+     * Get the number of queued blocks
+     * @return 
+     */
+    public int getQueueSize() {
+        return m_queueSize.get();
+    }
+
+    
+    /**
+     * Get the number of queued blocks held in memory
+     * @return 
+     */
+    public int getMemoryQueueSize() {
+        return m_queueSize.get() - m_spilledSize.get();
+    }
+
+    
+    /**
+     * Add entry to the queue
+     * @param entry 
+     * @return false if the entry was removed from the block placer
+     */
+    public boolean add(BlockPlacerEntry entry) {
+        m_producerLock.lock();
+        try {
+            if (m_isRemoved) {
+                return false;
+            }
+
+            final BlockPlacerJobEntry job;
+            if (entry instanceof BlockPlacerJobEntry) {
+                job = (BlockPlacerJobEntry) entry;
+                putJob(job);
+            } else {
+                job = getJob(entry.getJobId());
+            }
+            final QueueLane lane = getLane(job);
+
+            publishSegment();
+            updateQueueSize(1);
+            updateJobSize(entry, job, lane, 1);
+            m_lanes[lane.ordinal()].add(entry);
+            return true;
+        } finally {
+            m_producerLock.unlock();
+        }
+    }
+
+    
+    /**
+     * Add block to the queue, plain blocks are packed into block segments.
+     * The segment is published when it is full or when other entry is added.
+     * Repeated writes to the same block in the open segment are coalesced
+     * if enabled.
+     * @param editSession
+     * @param jobId
+     * @param location
+     * @param block 
+     * @param physicsWatcher
+     * @return false if the entry was removed from the block placer
+     */
+    public boolean addBlock(AsyncEditSession editSession, int jobId,
+            Vector location, BaseBlock block, PhysicsWatch physicsWatcher) {
+        final long position = PackedPosition.pack(location);
+        final int packedBlock = BlockPlacerBlockSegment.packBlock(block);
+
+        m_producerLock.lock();
+        try {
+            if (m_isRemoved) {
+                return false;
+            }
+
+            BlockPlacerBlockSegment segment = m_tailSegment;
+            if (segment != null && (segment.isFull()
+                    || segment.getEditSession() != editSession
+                    || segment.getJobId() != jobId
+                    || getLane(segment.getJob()) != m_tailLane)) {
+                publishSegment();
+                segment = null;
+            }
+            if (segment != null && segment.replace(position, packedBlock)) {
+                return true;
+            }
+            if (segment == null) {
+                segment = new BlockPlacerBlockSegment(editSession, jobId, getJob(jobId),
+                        ConfigProvider.isCoalesceWrites());
+                m_tailSegment = segment;
+                m_tailLane = getLane(segment.getJob());
+            }
+
+            //Physics is frozen before the block is visible to the block placer
+            final World world = editSession.getCBWorld();
+            if (world != null) {
+                final BlockPlacerJobEntry job = segment.getJob();
+                if (job != null && ConfigProvider.isPhysicsSettleEnabled()) {
+                    job.touch(world.getName(), location.getBlockX(),
+                            location.getBlockY(), location.getBlockZ());
+                }
+                if (BlockPlacerJobEntry.isBoxFrozen(job)) {
+                    job.freezeBlock(physicsWatcher, world.getName(), location.getBlockX(),
+                            location.getBlockY(), location.getBlockZ());
+                } else {
+                    physicsWatcher.addLocation(world.getName(), location);
+                }
+            }
+            segment.add(position, packedBlock);
+            updateQueueSize(1);
+            updateJobSize(segment, segment.getJob(), m_tailLane, 1);
+            if (segment.isFull()) {
+                publishSegment();
+            }
+            return true;
+        } finally {
+            m_producerLock.unlock();
+        }
+    }
+
+    
+    /**
+     * Get the queue lane for the job entries
+     * @param job the job, may by null
+     * @return 
+     */
+    private static QueueLane getLane(BlockPlacerJobEntry job) {
+        return job != null ? job.getLane() : QueueLane.Interactive;
+    }
+
+    
+    /**
+     * Make the open segment visible to the block placer (producer lock
+     * required). When the memory queue is over the spill threshold the
+     * segment is moved to the spill file.
+     */
+    private void publishSegment() {
+        if (m_tailSegment != null) {
+            m_tailSegment.seal();
+
+            BlockPlacerEntry entry = null;
+            if (ConfigProvider.isSpillEnabled()
+                    && getMemoryQueueSize() > ConfigProvider.getSpillThreshold()) {
+                entry = spillSegment(m_tailSegment);
+            }
+            if (entry == null) {
+                entry = m_tailSegment;
+            }
+
+            m_lanes[m_tailLane.ordinal()].add(entry);
+            m_tailSegment = null;
+            m_tailLane = null;
+        }
+    }
+
+    
+    /**
+     * Write the segment to the spill file (producer lock required)
+     * @param segment
+     * @return the spilled segment or null if the segment shuld by kept
+     * in memory
+     */
+    private BlockPlacerSpilledSegment spillSegment(BlockPlacerBlockSegment segment) {
+        if (m_spillFailed) {
+            return null;
+        }
+
+        try {
+            if (m_spillFile == null) {
+                m_spillFile = new SpillFile();
+            }
+
+            final int count = segment.getBlockCount();
+            long offset = m_spillFile.write(segment.getPositions(), segment.getBlocks(), count);
+            updateSpilledSize(count);
+            return new BlockPlacerSpilledSegment(m_spillFile, offset, segment);
+        } catch (IOException ex) {
+            m_spillFailed = true;
+            PluginMain.log("Unable to spill queued blocks, keeping them in memory: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    
+    /**
+     * Close the spill file of a removed entry
+     */
+    public void releaseSpillFile() {
+        m_producerLock.lock();
+        try {
+            if (m_isRemoved) {
+                closeSpillFile();
+            }
+        } finally {
+            m_producerLock.unlock();
+        }
+    }
+
+    
+    /**
+     * Close the spill file (producer lock required)
+     */
+    private void closeSpillFile() {
+        if (m_spillFile != null) {
+            m_spillFile.close();
+            m_spillFile = null;
+        }
+    }
+
+    
+    /**
+     * Try to publish the open segment, does not wait for the producers
+     * @return 
+     */
+    private boolean tryPublishSegment() {
+        if (!m_producerLock.tryLock()) {
+            return false;
+        }
+        try {
+            publishSegment();
+            return true;
+        } finally {
+            m_producerLock.unlock();
+        }
+    }
+
+    
+    /**
+     * Poll blocks from the queue, stops after a demanding entry. This method
+     * shuld by called only by the block placer. The lanes are served in
+     * priority order, a lane that waited for too many turns is served
+     * first.
+     *
+     * @param count maximum number of blocks to poll
+     * @param entries destination entries list
+     * @return number of polled blocks
+     */
+    public int poll(int count, List<BlockPlacerEntry> entries) {
+        if (isQueueEmpty() && m_queueSize.get() > 0) {
+            tryPublishSegment();
+        }
+
+        final QueueLane[] lanes = QueueLane.values();
+        final boolean[] waiting = new boolean[lanes.length];
+        final int[] polled = new int[lanes.length];
+        for (QueueLane lane : lanes) {
+            waiting[lane.ordinal()] = !m_lanes[lane.ordinal()].isEmpty();
+        }
+
+        int result = 0;
+        boolean demanding = false;
+        final QueueLane aged = getAgedLane();
+        if (aged != null) {
+            int cnt = pollLane(aged, Math.max(1, count / 2), entries);
+            polled[aged.ordinal()] += cnt;
+            result += cnt;
+            demanding = cnt > 0 && entries.get(entries.size() - 1).isDemanding();
+        }
+
+        for (int i = 0; i < lanes.length && result < count && !demanding; i++) {
+            int cnt = pollLane(lanes[i], count - result, entries);
+            polled[i] += cnt;
+            result += cnt;
+            demanding = cnt > 0 && entries.get(entries.size() - 1).isDemanding();
+        }
+
+        if (result > 0) {
+            for (int i = 0; i < lanes.length; i++) {
+                if (polled[i] > 0) {
+                    m_laneWait[i] = 0;
+                } else if (waiting[i]) {
+                    m_laneWait[i]++;
+                }
+            }
+        }
+
+        updateQueueSize(-result);
+        m_placed += result;
+        return result;
+    }
+
+    
+    /**
+     * Find the lowest priority lane that waited too long and can by served
+     * without placing job blocks before the same job blocks queued in
+     * a higher priority lane.
+     * @return the lane or null
+     */
+    private QueueLane getAgedLane() {
+        final int aging = ConfigProvider.getLaneAging();
+        if (aging <= 0) {
+            return null;
+        }
+
+        final QueueLane[] lanes = QueueLane.values();
+        for (int i = lanes.length - 1; i > 0; i--) {
+            if (m_laneWait[i] < aging) {
+                continue;
+            }
+
+            BlockPlacerEntry head = m_lanes[i].peek();
+            if (head == null) {
+                continue;
+            }
+
+            BlockPlacerJobEntry job;
+            if (head instanceof BlockPlacerBlockSegment) {
+                job = ((BlockPlacerBlockSegment) head).getJob();
+            } else if (head instanceof BlockPlacerSpilledSegment) {
+                job = ((BlockPlacerSpilledSegment) head).getJob();
+            } else {
+                job = getJob(head.getJobId());
+            }
+            boolean blocked = false;
+            for (int j = 0; j < i && job != null && !blocked; j++) {
+                blocked = job.getQueuedBlocks(lanes[j]) > 0;
+            }
+            if (!blocked) {
+                return lanes[i];
+            }
+        }
+
+        return null;
+    }
+
+    
+    /**
+     * Poll blocks from a single lane
+     * @param lane
+     * @param count
+     * @param entries
+     * @return number of polled blocks
+     */
+    private int pollLane(QueueLane lane, int count, List<BlockPlacerEntry> entries) {
+        final Queue<BlockPlacerEntry> queue = m_lanes[lane.ordinal()];
+        int result = 0;
+        while (result < count) {
+            BlockPlacerEntry entry = queue.peek();
+            if (entry == null) {
+                break;
+            }
+
+            if (entry instanceof BlockPlacerSpilledSegment) {
+                BlockPlacerSpilledSegment spilled = (BlockPlacerSpilledSegment) entry;
+                if (!spilled.isLoaded() && !loadSegment(spilled, lane)) {
+                    queue.poll();
+                    continue;
+                }
+            }
+
+            if (entry instanceof BlockPlacerBlockSegment
+                    || entry instanceof BlockPlacerSpilledSegment) {
+                BlockPlacerBlockSegment segment = entry instanceof BlockPlacerSpilledSegment
+                        ? ((BlockPlacerSpilledSegment) entry).getSegment()
+                        : (BlockPlacerBlockSegment) entry;
+                int size = Math.min(count - result, segment.getRemaining());
+
+                entries.add(segment.fetch(size));
+                updateJobSize(segment, segment.getJob(), lane, -size);
+                result += size;
+                if (segment.getRemaining() == 0) {
+                    queue.poll();
+                }
+                continue;
+            }
+
+            queue.poll();
+            entries.add(entry);
+            updateJobSize(entry, getJob(entry.getJobId()), lane, -1);
+            result++;
+            if (entry.isDemanding()) {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    
+    /**
+     * Load the spilled segment to memory, the segment blocks are dropped
+     * if the spill file cannot by read
+     * @param spilled
+     * @param lane
+     * @return true if the segment was loaded
+     */
+    private boolean loadSegment(BlockPlacerSpilledSegment spilled, QueueLane lane) {
+        final int count = spilled.getBlockCount();
+        try {
+            spilled.load();
+            updateSpilledSize(-count);
+            return true;
+        } catch (IOException ex) {
+            PluginMain.log("Unable to load spilled blocks, " + count + " blocks dropped: "
+                    + ex.getMessage());
+            updateSpilledSize(-count);
+            updateJobSize(spilled, spilled.getJob(), lane, -count);
+            updateQueueSize(-count);
+            return false;
+        }
+    }
+
+    
+    /**
+     * Remove all job entries from the queue
+     * @param jobId the job ID
+     * @param removed destination list for removed entries
+     * @return number of removed blocks
+     */
+    public int removeEntries(int jobId, List<BlockPlacerEntry> removed) {
+        int result = 0;
+        m_producerLock.lock();
+        try {
+            publishSegment();
+            for (QueueLane lane : QueueLane.values()) {
+                final Queue<BlockPlacerEntry> queue = m_lanes[lane.ordinal()];
+                for (Iterator<BlockPlacerEntry> it = queue.iterator(); it.hasNext();) {
+                    BlockPlacerEntry entry = it.next();
+                    if (entry.getJobId() != jobId) {
+                        continue;
+                    }
+
+                    it.remove();
+                    removed.add(entry);
+                    result += removeEntry(entry, lane);
+                }
+            }
+            updateQueueSize(-result);
+        } finally {
+            m_producerLock.unlock();
+        }
+
+        return result;
+    }
+
+    
+    /**
+     * Remove all entries from the queue, no more entries can by added
+     * @param removed destination list for removed entries
+     * @return number of removed blocks
+     */
+    public int clear(List<BlockPlacerEntry> removed) {
+        m_producerLock.lock();
+        try {
+            m_isRemoved = true;
+            publishSegment();
+
+            int result = 0;
+            for (QueueLane lane : QueueLane.values()) {
+                final Queue<BlockPlacerEntry> queue = m_lanes[lane.ordinal()];
+                for (BlockPlacerEntry entry : queue) {
+                    result += removeEntry(entry, lane);
+                }
+                removed.addAll(queue);
+                queue.clear();
+            }
+            updateQueueSize(-result);
+            return result;
+        } finally {
+            m_producerLock.unlock();
+        }
+    }
+
+    
+    /**
+     * Update the job counters for a removed entry
+     * @param entry
+     * @param lane
+     * @return number of removed blocks
+     */
+    private int removeEntry(BlockPlacerEntry entry, QueueLane lane) {
+        int size = 1;
+        BlockPlacerJobEntry job;
+        if (entry instanceof BlockPlacerBlockSegment) {
+            size = ((BlockPlacerBlockSegment) entry).getRemaining();
+            job = ((BlockPlacerBlockSegment) entry).getJob();
+        } else if (entry instanceof BlockPlacerSpilledSegment) {
+            BlockPlacerSpilledSegment spilled = (BlockPlacerSpilledSegment) entry;
+            size = spilled.getRemaining();
+            job = spilled.getJob();
+            if (!spilled.isLoaded()) {
+                updateSpilledSize(-spilled.getBlockCount());
+            }
+        } else {
+            job = getJob(entry.getJobId());
+        }
+        updateJobSize(entry, job, lane, -size);
+        return size;
+    }
+
+    
+    /**
+     * Update the player and global queue size counters
+     * @param delta 
+     */
+    private void updateQueueSize(int delta) {
+        m_queueSize.addAndGet(delta);
+        m_globalQueueSize.addAndGet(delta);
+    }
+
+    
+    /**
+     * Update the player and global spilled blocks counters
+     * @param delta 
+     */
+    private void updateSpilledSize(int delta) {
+        m_spilledSize.addAndGet(delta);
+        m_globalSpilledSize.addAndGet(delta);
     }
 
     
     /**
-     * Change current queue to new queue
-     * @param newQueue 
+     * Update the job queue size counter, job entries are not counted
+     * @param entry
+     * @param job
+     * @param lane
+     * @param delta 
      */
-    public void updateQueue(Queue<BlockPlacerEntry> newQueue) {
-        m_queue = newQueue;
+    private static void updateJobSize(BlockPlacerEntry entry, BlockPlacerJobEntry job,
+            QueueLane lane, int delta) {
+        if (entry instanceof BlockPlacerJobEntry || job == null) {
+            return;
+        }
+
+        job.updateQueuedBlocks(lane, delta);
+    }
+
+    
+    /**
+     * Try to mark an empty entry as removed, does not wait for the producers
+     * @return true if the entry is removed and can by dropped
+     */
+    public boolean tryRemove() {
+        if (!m_producerLock.tryLock()) {
+            return false;
+        }
+        try {
+            if (m_queueSize.get() == 0 && !hasJobs()) {
+                m_isRemoved = true;
+                closeSpillFile();
+            }
+            return m_isRemoved;
+        } finally {
+            m_producerLock.unlock();
+        }
     }
 
     
@@ -115,6 +746,58 @@ public class PlayerEntry {
         m_speed = (m_speed * (AVG_SAMPLES - 1) + (blocks / delta)) / AVG_SAMPLES;
     }
 
+    /**
+     * Get the number of blocks placed in the current run
+     *
+     * @return
+     */
+    public int getPlaced() {
+        return m_placed;
+    }
+
+    /**
+     * Reset the number of blocks placed in the current run
+     */
+    public void resetPlaced() {
+        m_placed = 0;
+    }
+
+    /**
+     * Get the scheduler weight
+     *
+     * @return
+     */
+    public int getWeight() {
+        return m_weight;
+    }
+
+    /**
+     * Set the scheduler weight
+     *
+     * @param weight
+     */
+    public void setWeight(int weight) {
+        m_weight = weight;
+    }
+
+    /**
+     * Get the scheduler deficit counter
+     *
+     * @return
+     */
+    public int getDeficit() {
+        return m_deficit;
+    }
+
+    /**
+     * Set the scheduler deficit counter
+     *
+     * @param deficit
+     */
+    public void setDeficit(int deficit) {
+        m_deficit = deficit;
+    }
+
     /**
      * Get next job id
      * @return 
@@ -132,8 +815,28 @@ public class PlayerEntry {
     /**
      * Add new job
      * @param job 
+     * @return false if the entry was removed from the block placer
+     */
+    public boolean addJob(BlockPlacerJobEntry job) {
+        m_producerLock.lock();
+        try {
+            if (m_isRemoved) {
+                return false;
+            }
+
+            putJob(job);
+            return true;
+        } finally {
+            m_producerLock.unlock();
+        }
+    }
+
+    
+    /**
+     * Add the job to the jobs map (producer lock required)
+     * @param job 
      */
-    public void addJob(BlockPlacerJobEntry job) {
+    private void putJob(BlockPlacerJobEntry job) {
         synchronized (m_jobs) {
             int id = job.getJobId();
             if (m_jobs.containsKey(id)) {
@@ -182,7 +885,7 @@ public class PlayerEntry {
      */    
     public Collection<BlockPlacerJobEntry> getJobs() {
         synchronized (m_jobs) {
-            return m_jobs.values();
+            return new ArrayList<BlockPlacerJobEntry>(m_jobs.values());
         }
     }
 
@@ -198,8 +901,31 @@ public class PlayerEntry {
             }
             lines.add(ChatColor.YELLOW + "Jobs: ");
             for (BlockPlacerJobEntry job : m_jobs.values()) {
+                StringBuilder queued = new StringBuilder();
+                for (QueueLane lane : QueueLane.values()) {
+                    int cnt = job.getQueuedBlocks(lane);
+                    if (cnt > 0) {
+                        queued.append(queued.length() == 0 ? " (" : ", ");
+                        queued.append(lane.getLaneString()).append(": ")
+                                .append(ChatColor.WHITE).append(cnt);
+                    }
+                }
+                if (queued.length() > 0) {
+                    queued.append(ChatColor.YELLOW).append(")");
+                }
+
+                if (job.getBlockedCount() > 0) {
+                    queued.append(ChatColor.YELLOW).append(", blocked: ").append(ChatColor.WHITE)
+                            .append(String.format("%.1fs", job.getBlockedTime() / 1000.0))
+                            .append(ChatColor.YELLOW).append(" (").append(ChatColor.WHITE)
+                            .append(job.getBlockedCount()).append(ChatColor.YELLOW).append(" waits)");
+                }
+
                 lines.add(ChatColor.YELLOW + " * " + job.toString()
-                        + ChatColor.YELLOW + " - " + job.getStatusString());
+                        + ChatColor.YELLOW + " - " + job.getStatusString()
+                        + ChatColor.YELLOW + ", lane: " + job.getLane().getLaneString()
+                        + ChatColor.YELLOW + ", " + ChatColor.WHITE + job.getQueuedBlocks()
+                        + ChatColor.YELLOW + " blocks queued" + queued);
             }
         }
     }
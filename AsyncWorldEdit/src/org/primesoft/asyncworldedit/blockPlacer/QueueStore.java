@@ -0,0 +1,498 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.bukkit.BukkitUtil;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bukkit.World;
+import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+import org.primesoft.asyncworldedit.worldedit.AsyncEditSession;
+import org.primesoft.asyncworldedit.worldedit.AsyncEditSessionFactory;
+import org.primesoft.asyncworldedit.worldedit.CancelabeEditSession;
+import org.primesoft.asyncworldedit.worldedit.JobContext;
+import org.primesoft.asyncworldedit.worldedit.WorldeditIntegrator;
+
+/**
+ * Stores the pending block queues when the plugin is disabled and resumes
+ * them when the plugin is enabled. The undo history of each edit session
+ * is stored with its queues, jobs without the undo history (except the
+ * undo jobs) are not resumed. The file is written and read as a stream
+ * of records.
+ *
+ * @author SBPrime
+ */
+public class QueueStore {
+
+    /**
+     * File magic number
+     */
+    private final static int MAGIC = 0x41574551;
+
+    /**
+     * File format version
+     */
+    private final static int VERSION = 2;
+
+    /**
+     * The queue file name
+     */
+    private final static String FILE_NAME = "queue.bin";
+
+    /**
+     * Stream buffer size
+     */
+    private final static int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * End of file record
+     */
+    private final static byte REC_END = 0;
+
+    /**
+     * Job record: player, world, job name, is undo job, session id
+     */
+    private final static byte REC_JOB = 1;
+
+    /**
+     * Blocks record: count, packed positions, packed blocks
+     */
+    private final static byte REC_BLOCKS = 2;
+
+    /**
+     * Session undo history record: session id, length, compact history
+     */
+    private final static byte REC_HISTORY = 3;
+
+    /**
+     * Get the queue file
+     *
+     * @return
+     */
+    private static File getFile() {
+        return new File(PluginMain.getInstance().getDataFolder(), FILE_NAME);
+    }
+
+    /**
+     * Store all pending block queues, the queues are cleared. Only plain
+     * blocks are stored, other queue entries are dropped.
+     *
+     * @param blockPlacer
+     */
+    public static void save(BlockPlacer blockPlacer) {
+        final File file = getFile();
+        int blocks = 0;
+        int skipped = 0;
+        final Map<AsyncEditSession, Integer> sessionIds = new IdentityHashMap<AsyncEditSession, Integer>();
+
+        DataOutputStream out = null;
+        try {
+            File folder = file.getParentFile();
+            if (!folder.exists() && !folder.mkdirs()) {
+                throw new IOException("Unable to create folder " + folder);
+            }
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            for (String player : blockPlacer.getAllPlayers()) {
+                PlayerEntry playerEntry = blockPlacer.getPlayerEvents(player);
+                if (playerEntry == null) {
+                    continue;
+                }
+
+                final List<BlockPlacerEntry> removed = new ArrayList<BlockPlacerEntry>();
+                playerEntry.clear(removed);
+
+                final Map<String, List<BlockPlacerEntry>> groups = new LinkedHashMap<String, List<BlockPlacerEntry>>();
+                for (BlockPlacerEntry entry : removed) {
+                    if (entry instanceof BlockPlacerJobEntry) {
+                        continue;
+                    }
+
+                    World world = entry.getEditSession() != null ? entry.getEditSession().getCBWorld() : null;
+                    if (world == null || !canStore(entry)) {
+                        skipped++;
+                        continue;
+                    }
+
+                    String key = entry.getJobId() + ":" + world.getName();
+                    List<BlockPlacerEntry> group = groups.get(key);
+                    if (group == null) {
+                        group = new ArrayList<BlockPlacerEntry>();
+                        groups.put(key, group);
+                    }
+                    group.add(entry);
+                }
+
+                for (List<BlockPlacerEntry> group : groups.values()) {
+                    final BlockPlacerEntry first = group.get(0);
+                    final BlockPlacerJobEntry job = playerEntry.getJob(first.getJobId());
+                    final AsyncEditSession session = first.getEditSession();
+
+                    Integer sessionId = sessionIds.get(session);
+                    if (sessionId == null) {
+                        sessionId = sessionIds.size();
+                        sessionIds.put(session, sessionId);
+                        writeHistory(out, sessionId, session);
+                    }
+
+                    out.writeByte(REC_JOB);
+                    out.writeUTF(player);
+                    out.writeUTF(session.getCBWorld().getName());
+                    out.writeUTF(job != null ? job.getName() : "");
+                    out.writeBoolean(job instanceof BlockPlacerUndoJob);
+                    out.writeInt(sessionId);
+                    for (BlockPlacerEntry entry : group) {
+                        blocks += writeBlocks(out, entry);
+                    }
+                }
+
+                playerEntry.releaseSpillFile();
+            }
+
+            out.writeByte(REC_END);
+        } catch (IOException ex) {
+            PluginMain.log("Error storing the block queue: " + ex.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    PluginMain.log("Error storing the block queue: " + ex.getMessage());
+                }
+            }
+        }
+
+        if (blocks == 0 && !file.delete()) {
+            file.deleteOnExit();
+        }
+        if (blocks > 0) {
+            PluginMain.log("Stored " + blocks + " queued blocks.");
+        }
+        if (skipped > 0) {
+            PluginMain.log("Dropped " + skipped + " queue entries that cannot by stored.");
+        }
+    }
+
+    /**
+     * Can the entry by stored in the queue file
+     *
+     * @param entry
+     * @return
+     */
+    private static boolean canStore(BlockPlacerEntry entry) {
+        if (entry instanceof BlockPlacerBlockEntry) {
+            return BlockPlacerBlockSegment.canPack(((BlockPlacerBlockEntry) entry).getNewBlock());
+        }
+
+        return entry instanceof BlockPlacerBlockSegment
+                || entry instanceof BlockPlacerSpilledSegment;
+    }
+
+    /**
+     * Write the session undo history record
+     *
+     * @param out
+     * @param sessionId
+     * @param session
+     * @throws IOException
+     */
+    private static void writeHistory(DataOutputStream out, int sessionId,
+            AsyncEditSession session) throws IOException {
+        final byte[] history;
+        try {
+            history = session.exportHistory();
+        } catch (RuntimeException ex) {
+            PluginMain.log("Unable to read the stored history: " + ex.getMessage());
+            return;
+        }
+
+        if (history == null) {
+            return;
+        }
+
+        out.writeByte(REC_HISTORY);
+        out.writeInt(sessionId);
+        out.writeInt(history.length);
+        out.write(history);
+    }
+
+    /**
+     * Write the entry blocks record
+     *
+     * @param out
+     * @param entry
+     * @return number of written blocks
+     * @throws IOException
+     */
+    private static int writeBlocks(DataOutputStream out, BlockPlacerEntry entry) throws IOException {
+        if (entry instanceof BlockPlacerBlockEntry) {
+            BlockPlacerBlockEntry blockEntry = (BlockPlacerBlockEntry) entry;
+            out.writeByte(REC_BLOCKS);
+            out.writeInt(1);
+            out.writeLong(PackedPosition.pack(blockEntry.getLocation()));
+            out.writeInt(BlockPlacerBlockSegment.packBlock(blockEntry.getNewBlock()));
+            return 1;
+        }
+
+        final BlockPlacerBlockSegment segment;
+        try {
+            segment = entry instanceof BlockPlacerSpilledSegment
+                    ? ((BlockPlacerSpilledSegment) entry).load()
+                    : (BlockPlacerBlockSegment) entry;
+        } catch (IOException ex) {
+            PluginMain.log("Unable to load spilled blocks: " + ex.getMessage());
+            return 0;
+        }
+
+        final int count = segment.getRemaining();
+        final int from = segment.getBlockCount() - count;
+        final long[] positions = segment.getPositions();
+        final int[] packedBlocks = segment.getBlocks();
+        out.writeByte(REC_BLOCKS);
+        out.writeInt(count);
+        for (int i = from; i < from + count; i++) {
+            out.writeLong(positions[i]);
+        }
+        for (int i = from; i < from + count; i++) {
+            out.writeInt(packedBlocks[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Resume the stored block queues, the blocks are added to the queue by
+     * an async task
+     *
+     * @param plugin
+     * @param integrator
+     */
+    public static void restore(final PluginMain plugin, final WorldeditIntegrator integrator) {
+        final File file = getFile();
+        if (!file.exists()) {
+            return;
+        }
+
+        //The file is renamed so a crash during the restore does not place the blocks twice
+        final File restoreFile = new File(file.getParentFile(), FILE_NAME + ".restore");
+        if (restoreFile.exists() && !restoreFile.delete()) {
+            PluginMain.log("Unable to remove " + restoreFile);
+            return;
+        }
+        if (!file.renameTo(restoreFile)) {
+            PluginMain.log("Unable to rename " + file);
+            return;
+        }
+
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                load(plugin, integrator, restoreFile);
+            }
+        });
+    }
+
+    /**
+     * Load the queue file and add the blocks to the block placer
+     *
+     * @param plugin
+     * @param integrator
+     * @param file
+     */
+    private static void load(final PluginMain plugin, final WorldeditIntegrator integrator, File file) {
+        final BlockPlacer blockPlacer = plugin.getBlockPlacer();
+        final AsyncEditSessionFactory factory = integrator.getEditSessionFactory();
+        final Map<Integer, byte[]> histories = new HashMap<Integer, byte[]>();
+        final Map<Integer, AsyncEditSession> sessions = new LinkedHashMap<Integer, AsyncEditSession>();
+        final List<AsyncEditSession> undoable = new ArrayList<AsyncEditSession>();
+        int blocks = 0;
+        int dropped = 0;
+
+        DataInputStream in = null;
+        String player = null;
+        AsyncEditSession session = null;
+        BlockPlacerJobEntry job = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported file format");
+            }
+
+            long[] positions = new long[0];
+            int[] packedBlocks = new int[0];
+            byte type;
+            while ((type = in.readByte()) != REC_END) {
+                switch (type) {
+                    case REC_HISTORY: {
+                        int sessionId = in.readInt();
+                        byte[] history = new byte[in.readInt()];
+                        in.readFully(history);
+                        histories.put(sessionId, history);
+                        break;
+                    }
+                    case REC_JOB: {
+                        finishJob(blockPlacer, player, session, job);
+                        job = null;
+
+                        player = in.readUTF();
+                        String worldName = in.readUTF();
+                        String name = in.readUTF();
+                        boolean isUndo = in.readBoolean();
+                        int sessionId = in.readInt();
+
+                        World world = plugin.getServer().getWorld(worldName);
+                        if (world == null) {
+                            PluginMain.log("World " + worldName + " not found, skipping stored blocks.");
+                            continue;
+                        }
+
+                        session = sessions.get(sessionId);
+                        if (session == null) {
+                            byte[] history = histories.remove(sessionId);
+                            session = new AsyncEditSession(factory, plugin, player,
+                                    BukkitUtil.getLocalWorld(world), -1);
+                            if (history != null && session.restoreHistory(history)) {
+                                undoable.add(session);
+                            } else if (!isUndo) {
+                                //Undo jobs are finished using the stored blocks
+                                PluginMain.log("No undo history for " + player + " " + name
+                                        + ", the job cannot by rolled back and is not resumed.");
+                                session = null;
+                                continue;
+                            }
+                            sessions.put(sessionId, session);
+                        }
+
+                        int jobId = blockPlacer.getJobId(player);
+                        CancelabeEditSession cSession = new CancelabeEditSession(session, null, jobId);
+                        name = "resume " + name;
+                        job = isUndo ? new BlockPlacerUndoJob(session, cSession, jobId, name)
+                                : new BlockPlacerJobEntry(session, cSession, jobId, name);
+
+                        session.addAsync(job);
+                        JobContext.begin(job);
+                        job.setStatus(BlockPlacerJobEntry.JobStatus.Preparing);
+                        blockPlacer.addTasks(player, job);
+                        break;
+                    }
+                    case REC_BLOCKS: {
+                        int count = in.readInt();
+                        if (positions.length < count) {
+                            positions = new long[count];
+                            packedBlocks = new int[count];
+                        }
+                        for (int i = 0; i < count; i++) {
+                            positions[i] = in.readLong();
+                        }
+                        for (int i = 0; i < count; i++) {
+                            packedBlocks[i] = in.readInt();
+                        }
+
+                        if (job == null || job.isCanceled()) {
+                            dropped += count;
+                            continue;
+                        }
+                        for (int i = 0; i < count; i++) {
+                            Vector location = PackedPosition.toVector(positions[i]);
+                            BaseBlock block = BlockPlacerBlockSegment.unpackBlock(packedBlocks[i]);
+                            if (blockPlacer.addBlock(player, session, job.getJobId(), location, block)) {
+                                blocks++;
+                            }
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Invalid record " + type);
+                }
+            }
+        } catch (IOException ex) {
+            PluginMain.log("Error loading the stored block queue: " + ex.getMessage());
+        } finally {
+            finishJob(blockPlacer, player, session, job);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    PluginMain.log("Error loading the stored block queue: " + ex.getMessage());
+                }
+            }
+        }
+
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        PluginMain.log("Resumed " + blocks + " stored blocks.");
+        if (dropped > 0) {
+            PluginMain.log("Dropped " + dropped + " stored blocks.");
+        }
+
+        //Make the resumed jobs undoable by the players
+        plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+            @Override
+            public void run() {
+                for (AsyncEditSession restored : undoable) {
+                    integrator.remember(restored.getPlayer(), restored);
+                }
+            }
+        });
+    }
+
+    /**
+     * Mark the resumed job as ready to finish
+     *
+     * @param blockPlacer
+     * @param player
+     * @param session
+     * @param job
+     */
+    private static void finishJob(BlockPlacer blockPlacer, String player,
+            AsyncEditSession session, BlockPlacerJobEntry job) {
+        if (job == null) {
+            return;
+        }
+
+        job.setStatus(BlockPlacerJobEntry.JobStatus.Waiting);
+        blockPlacer.addTasks(player, job);
+        JobContext.end();
+        job.taskDone();
+        session.removeAsync(job);
+    }
+}
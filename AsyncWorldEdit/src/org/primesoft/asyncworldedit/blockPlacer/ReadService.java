@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.bukkit.World;
+import org.primesoft.asyncworldedit.utils.Histogram;
+
+/**
+ * Main thread world read requests. The requests are grouped by chunk and
+ * processed in the per-tick time budget, the async jobs wait on the request
+ * futures.
+ *
+ * @author SBPrime
+ */
+public class ReadService {
+
+    /**
+     * The request chunk
+     */
+    private static class ChunkKey {
+
+        private final World m_world;
+        private final int m_x;
+        private final int m_z;
+
+        public ChunkKey(World world, int x, int z) {
+            m_world = world;
+            m_x = x;
+            m_z = z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (m_x * 31 + m_z) * 31 + System.identityHashCode(m_world);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ChunkKey)) {
+                return false;
+            }
+            ChunkKey other = (ChunkKey) obj;
+            return m_x == other.m_x && m_z == other.m_z && m_world == other.m_world;
+        }
+    }
+
+    /**
+     * Queued read request
+     */
+    private static class Request {
+
+        private final FutureTask<?> m_task;
+        private final long m_queued;
+
+        public Request(FutureTask<?> task) {
+            m_task = task;
+            m_queued = System.nanoTime();
+        }
+    }
+
+    /**
+     * Pending requests grouped by chunk, in arrival order
+     */
+    private final LinkedHashMap<ChunkKey, List<Request>> m_pending = new LinkedHashMap<ChunkKey, List<Request>>();
+
+    /**
+     * Main thread time spent on the requests (per tick)
+     */
+    private final Histogram m_tickTime = new Histogram();
+
+    /**
+     * Time from queuing a request to its completion
+     */
+    private final Histogram m_latency = new Histogram();
+
+    /**
+     * Number of pending requests
+     */
+    private int m_size;
+
+    /**
+     * Queue a read request
+     *
+     * @param <T>
+     * @param world the request world
+     * @param x chunk X coordinate
+     * @param z chunk Z coordinate
+     * @param request the read operation, run on the main thread
+     * @return
+     */
+    public <T> Future<T> submit(World world, int x, int z, Callable<T> request) {
+        final FutureTask<T> task = new FutureTask<T>(request);
+        final ChunkKey key = new ChunkKey(world, x, z);
+
+        synchronized (m_pending) {
+            List<Request> requests = m_pending.get(key);
+            if (requests == null) {
+                requests = new ArrayList<Request>();
+                m_pending.put(key, requests);
+            }
+            requests.add(new Request(task));
+            m_size++;
+        }
+
+        return task;
+    }
+
+    /**
+     * Number of pending requests
+     *
+     * @return
+     */
+    public int size() {
+        synchronized (m_pending) {
+            return m_size;
+        }
+    }
+
+    /**
+     * Process the pending requests, a chunk group is always processed as a
+     * whole. This method never waits for new requests.
+     *
+     * @param budget time budget (ns), 0 to process all requests
+     * @return number of processed requests
+     */
+    public int process(long budget) {
+        final long start = System.nanoTime();
+        int processed = 0;
+
+        while (budget <= 0 || System.nanoTime() - start < budget) {
+            final List<Request> requests;
+            synchronized (m_pending) {
+                Iterator<Map.Entry<ChunkKey, List<Request>>> it = m_pending.entrySet().iterator();
+                if (!it.hasNext()) {
+                    break;
+                }
+                requests = it.next().getValue();
+                it.remove();
+                m_size -= requests.size();
+            }
+
+            for (Request r : requests) {
+                r.m_task.run();
+                m_latency.record(System.nanoTime() - r.m_queued);
+            }
+            processed += requests.size();
+        }
+
+        if (processed > 0) {
+            m_tickTime.record(System.nanoTime() - start);
+        }
+        return processed;
+    }
+
+    /**
+     * Cancel all pending requests
+     */
+    public void cancel() {
+        final List<Request> requests = new ArrayList<Request>();
+        synchronized (m_pending) {
+            for (List<Request> r : m_pending.values()) {
+                requests.addAll(r);
+            }
+            m_pending.clear();
+            m_size = 0;
+        }
+
+        for (Request r : requests) {
+            r.m_task.cancel(false);
+        }
+    }
+
+    /**
+     * Main thread time spent on the requests (per tick)
+     *
+     * @return
+     */
+    public Histogram getTickTime() {
+        return m_tickTime;
+    }
+
+    /**
+     * Time from queuing a request to its completion
+     *
+     * @return
+     */
+    public Histogram getLatency() {
+        return m_latency;
+    }
+
+    /**
+     * Wait for the request result
+     *
+     * @param <T>
+     * @param future
+     * @return
+     */
+    public static <T> T get(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.primesoft.asyncworldedit.PluginMain;
+
+/**
+ * Memory mapped file used to store block segments that do not fit in the
+ * memory queue. Segments are written by the producers and read back
+ * sequentially by the block placer.
+ *
+ * @author SBPrime
+ */
+public class SpillFile {
+
+    /**
+     * Size of a single mapped region
+     */
+    private final static int REGION_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Spill files folder name
+     */
+    private final static String FOLDER = "spill";
+
+    /**
+     * Get the spill files folder
+     *
+     * @return
+     */
+    private static File getFolder() {
+        return new File(PluginMain.getInstance().getDataFolder(), FOLDER);
+    }
+
+    /**
+     * Remove all spill files left by the previous run
+     */
+    public static void cleanup() {
+        File[] files = getFolder().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            if (f.isFile() && !f.delete()) {
+                f.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * The file
+     */
+    private final File m_file;
+
+    /**
+     * The file access
+     */
+    private final RandomAccessFile m_raf;
+
+    /**
+     * The file channel
+     */
+    private final FileChannel m_channel;
+
+    /**
+     * Mapped regions
+     */
+    private final List<MappedByteBuffer> m_regions;
+
+    /**
+     * Next write position (producer lock required)
+     */
+    private long m_writePos;
+
+    public SpillFile() throws IOException {
+        File folder = getFolder();
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Unable to create folder " + folder);
+        }
+
+        m_file = File.createTempFile("queue", ".bin", folder);
+        m_file.deleteOnExit();
+        m_raf = new RandomAccessFile(m_file, "rw");
+        m_channel = m_raf.getChannel();
+        m_regions = new CopyOnWriteArrayList<MappedByteBuffer>();
+        m_writePos = 0;
+    }
+
+    /**
+     * Write the blocks to the file
+     *
+     * @param positions packed block positions
+     * @param blocks packed blocks
+     * @param count number of blocks to write
+     * @return the record offset
+     * @throws IOException
+     */
+    public long write(long[] positions, int[] blocks, int count) throws IOException {
+        final int size = count * 12;
+        long offset = m_writePos;
+        if (offset % REGION_SIZE + size > REGION_SIZE) {
+            //Records never cross the region boundary
+            offset = (offset / REGION_SIZE + 1) * REGION_SIZE;
+        }
+
+        final int region = (int) (offset / REGION_SIZE);
+        while (m_regions.size() <= region) {
+            m_regions.add(m_channel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) m_regions.size() * REGION_SIZE, REGION_SIZE));
+        }
+
+        final MappedByteBuffer buffer = m_regions.get(region);
+        int pos = (int) (offset % REGION_SIZE);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(pos, positions[i]);
+            pos += 8;
+        }
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(pos, blocks[i]);
+            pos += 4;
+        }
+
+        m_writePos = offset + size;
+        return offset;
+    }
+
+    /**
+     * Read the blocks from the file
+     *
+     * @param offset the record offset
+     * @param positions destination packed block positions
+     * @param blocks destination packed blocks
+     * @param count number of blocks to read
+     * @throws IOException
+     */
+    public void read(long offset, long[] positions, int[] blocks, int count) throws IOException {
+        final int region = (int) (offset / REGION_SIZE);
+        if (region >= m_regions.size()) {
+            throw new IOException("Invalid spill file offset " + offset);
+        }
+
+        final MappedByteBuffer buffer = m_regions.get(region);
+        int pos = (int) (offset % REGION_SIZE);
+        for (int i = 0; i < count; i++) {
+            positions[i] = buffer.getLong(pos);
+            pos += 8;
+        }
+        for (int i = 0; i < count; i++) {
+            blocks[i] = buffer.getInt(pos);
+            pos += 4;
+        }
+    }
+
+    /**
+     * Close and remove the file
+     */
+    public void close() {
+        m_regions.clear();
+        try {
+            m_channel.close();
+            m_raf.close();
+        } catch (IOException ex) {
+            PluginMain.log("Error closing spill file: " + ex.getMessage());
+        }
+
+        if (!m_file.delete()) {
+            //Mapped regions are released by the GC
+            m_file.deleteOnExit();
+        }
+    }
+}
@@ -35,4 +35,5 @@ public final class Commands {
     public final static String COMMAND_JOBS = "Jobs";
     public final static String COMMAND_CANCEL = "Cancel";
     public final static String COMMAND_TOGGLE = "Toggle";
+    public final static String COMMAND_JOURNAL = "Journal";
 }
\ No newline at end of file
@@ -28,10 +28,13 @@ import java.util.List;
 import org.bukkit.ChatColor;
 import org.bukkit.entity.Player;
 import org.primesoft.asyncworldedit.blockPlacer.BlockPlacer;
+import org.primesoft.asyncworldedit.BlocksHubLogger;
 import org.primesoft.asyncworldedit.Help;
 import org.primesoft.asyncworldedit.PermissionManager;
+import org.primesoft.asyncworldedit.PhysicsWatch;
 import org.primesoft.asyncworldedit.PluginMain;
 import org.primesoft.asyncworldedit.blockPlacer.PlayerEntry;
+import org.primesoft.asyncworldedit.utils.Histogram;
 
 /**
  *
@@ -151,7 +154,7 @@ public class JobsCommand {
             } else {
                 for (String user : users) {
                     PlayerEntry entry = bPlacer.getPlayerEvents(user);
-                    int cnt = entry != null ? entry.getQueue().size() : 0;
+                    int cnt = entry != null ? entry.getQueueSize() : 0;
                     lines.add(ChatColor.YELLOW + "Player " + ChatColor.WHITE
                             + user + ChatColor.YELLOW + " has " + ChatColor.WHITE + cnt
                             + ChatColor.YELLOW + " block operations queued.");
@@ -160,6 +163,32 @@ public class JobsCommand {
                     }
                 }
             }
+            if (users.length > 0) {
+                lines.add(ChatColor.YELLOW + "Total: " + ChatColor.WHITE + bPlacer.getQueueSize()
+                        + ChatColor.YELLOW + " block operations queued"
+                        + (bPlacer.getSpilledSize() > 0
+                        ? " (" + ChatColor.WHITE + bPlacer.getSpilledSize() + ChatColor.YELLOW + " on disk)."
+                        : "."));
+            }
+            lines.add(bPlacer.getRunMessage());
+            lines.add(bPlacer.getThrottleMessage());
+            lines.add(bPlacer.getReadMessage());
+
+            PhysicsWatch physicsWatch = bPlacer.getPhysicsWatcher();
+            if (physicsWatch.isEnabled()) {
+                Histogram checkTime = physicsWatch.getCheckTime();
+                lines.add(ChatColor.YELLOW + "Physics checks: " + ChatColor.WHITE
+                        + String.format("p50 %dus, p99 %dus, max %dus", checkTime.getPercentile(50),
+                                checkTime.getPercentile(99), checkTime.getMax())
+                        + ChatColor.YELLOW + " (1 in 64 sampled)");
+            }
+
+            BlocksHubLogger logger = sender.getBlocksHub().getLogger();
+            if (logger != null) {
+                lines.add(ChatColor.YELLOW + "Block log: " + ChatColor.WHITE + logger.getLogged()
+                        + ChatColor.YELLOW + " logged, backlog: " + ChatColor.WHITE + logger.getBacklog()
+                        + ChatColor.YELLOW + ", dropped: " + ChatColor.WHITE + logger.getDropped());
+            }
         }
 
         String[] l = lines.toArray(new String[0]);
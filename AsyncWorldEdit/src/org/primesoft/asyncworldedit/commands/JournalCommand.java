@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Player;
+import org.primesoft.asyncworldedit.Help;
+import org.primesoft.asyncworldedit.PermissionManager;
+import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.blockPlacer.JournalRecovery;
+
+/**
+ *
+ * @author SBPrime
+ */
+public class JournalCommand {
+
+    public static void Execte(PluginMain sender, Player player, String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            Help.ShowHelp(player, Commands.COMMAND_JOURNAL);
+            return;
+        }
+
+        if (!PermissionManager.isAllowed(player, PermissionManager.Perms.Journal)) {
+            PluginMain.say(player, ChatColor.RED + "You have no permissions to do that.");
+            return;
+        }
+
+        JournalRecovery recovery = sender.getJournalRecovery();
+        if (recovery == null) {
+            PluginMain.say(player, ChatColor.YELLOW + "No unfinished jobs found in the placement journal.");
+            return;
+        }
+        if (recovery.isRunning()) {
+            PluginMain.say(player, ChatColor.YELLOW + "Journal recovery is already running.");
+            return;
+        }
+
+        if (args.length == 1) {
+            List<String> lines = new ArrayList<String>();
+            recovery.printJobs(lines);
+            for (String s : lines) {
+                PluginMain.say(player, s);
+            }
+            return;
+        }
+
+        String arg = args[1];
+        if (arg.equalsIgnoreCase("rollback")) {
+            PluginMain.say(player, ChatColor.YELLOW + "Rolling back the unfinished jobs...");
+            recovery.start(sender, player, true);
+        } else if (arg.equalsIgnoreCase("forward")) {
+            PluginMain.say(player, ChatColor.YELLOW + "Rolling forward the unfinished jobs...");
+            recovery.start(sender, player, false);
+        } else if (arg.equalsIgnoreCase("discard")) {
+            recovery.discard();
+            PluginMain.say(player, ChatColor.YELLOW + "Placement journal removed.");
+        } else {
+            Help.ShowHelp(player, Commands.COMMAND_JOURNAL);
+        }
+    }
+}
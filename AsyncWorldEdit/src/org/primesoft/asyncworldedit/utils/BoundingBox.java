@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.utils;
+
+/**
+ * Block bounding box that can by grown by one thread and read by other
+ * threads
+ *
+ * @author SBPrime
+ */
+public class BoundingBox {
+
+    private volatile int m_minX = Integer.MAX_VALUE;
+    private volatile int m_minY = Integer.MAX_VALUE;
+    private volatile int m_minZ = Integer.MAX_VALUE;
+    private volatile int m_maxX = Integer.MIN_VALUE;
+    private volatile int m_maxY = Integer.MIN_VALUE;
+    private volatile int m_maxZ = Integer.MIN_VALUE;
+
+    /**
+     * Grow the box to include the block
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void extend(int x, int y, int z) {
+        if (x >= m_minX && x <= m_maxX
+                && y >= m_minY && y <= m_maxY
+                && z >= m_minZ && z <= m_maxZ) {
+            return;
+        }
+
+        synchronized (this) {
+            if (x < m_minX) {
+                m_minX = x;
+            }
+            if (x > m_maxX) {
+                m_maxX = x;
+            }
+            if (y < m_minY) {
+                m_minY = y;
+            }
+            if (y > m_maxY) {
+                m_maxY = y;
+            }
+            if (z < m_minZ) {
+                m_minZ = z;
+            }
+            if (z > m_maxZ) {
+                m_maxZ = z;
+            }
+        }
+    }
+
+    /**
+     * Check if the block is in the box grown by delta
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param delta
+     * @return
+     */
+    public boolean contains(int x, int y, int z, int delta) {
+        return x >= m_minX - delta && x <= m_maxX + delta
+                && z >= m_minZ - delta && z <= m_maxZ + delta
+                && y >= m_minY - delta && y <= m_maxY + delta;
+    }
+
+    /**
+     * Number of blocks in the box
+     *
+     * @return
+     */
+    public long getVolume() {
+        if (m_maxX < m_minX || m_maxY < m_minY || m_maxZ < m_minZ) {
+            return 0;
+        }
+        return (long) (m_maxX - m_minX + 1) * (m_maxY - m_minY + 1) * (m_maxZ - m_minZ + 1);
+    }
+}
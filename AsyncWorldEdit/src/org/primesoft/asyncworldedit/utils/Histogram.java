@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free time histogram with power of two microsecond buckets
+ *
+ * @author SBPrime
+ */
+public class Histogram {
+
+    /**
+     * Number of buckets, the last bucket holds all values above 2^30us
+     */
+    private final static int BUCKETS = 32;
+
+    /**
+     * Number of nanoseconds in one microsecond
+     */
+    private final static long NANOS_PER_US = 1000;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong m_count = new AtomicLong();
+
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Add a value to the histogram
+     *
+     * @param nanos time in ns
+     */
+    public void record(long nanos) {
+        final long us = Math.max(0, nanos / NANOS_PER_US);
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+        m_buckets.incrementAndGet(bucket);
+        m_count.incrementAndGet();
+
+        long max = m_max.get();
+        while (us > max && !m_max.compareAndSet(max, us)) {
+            max = m_max.get();
+        }
+    }
+
+    /**
+     * Number of recorded values
+     *
+     * @return
+     */
+    public long getCount() {
+        return m_count.get();
+    }
+
+    /**
+     * The largest recorded value
+     *
+     * @return time in us
+     */
+    public long getMax() {
+        return m_max.get();
+    }
+
+    /**
+     * Get the upper bound of the percentile
+     *
+     * @param percentile percentile (0 - 100)
+     * @return time in us
+     */
+    public long getPercentile(double percentile) {
+        final long count = m_count.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long total = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            total += m_buckets.get(i);
+            if (total >= rank) {
+                return Math.min(1L << i, m_max.get());
+            }
+        }
+        return m_max.get();
+    }
+
+    /**
+     * Clear the histogram
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            m_buckets.set(i, 0);
+        }
+        m_count.set(0);
+        m_max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("p50 %.2fms, p99 %.2fms, max %.2fms",
+                getPercentile(50) / 1000.0, getPercentile(99) / 1000.0, getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counted set of block locations. The location counters are kept in
+ * primitive hash maps striped by chunk section, each chunk section with
+ * locations has a bitset used for the neighbourhood tests. The
+ * neighbourhood tests do not lock, the writes lock only the section stripe.
+ *
+ * @author SBPrime
+ */
+public class LocationIndex {
+
+    /**
+     * Number of longs in a section bitset
+     */
+    private final static int SECTION_LONGS = 4096 / 64;
+
+    /**
+     * Number of write stripes
+     */
+    private final static int STRIPES = 16;
+
+    /**
+     * Minimum section table size
+     */
+    private final static int MIN_TABLE = 64;
+
+    /**
+     * Chunk section bitset
+     */
+    private static class Section {
+
+        /**
+         * Packed section coordinates
+         */
+        private final long m_key;
+
+        /**
+         * The location bits
+         */
+        private final AtomicLongArray m_bits = new AtomicLongArray(SECTION_LONGS);
+
+        /**
+         * Number of locations in the section (stripe lock required)
+         */
+        private int m_count;
+
+        public Section(long key) {
+            m_key = key;
+        }
+    }
+
+    /**
+     * Removed section table entry
+     */
+    private final static Section TOMBSTONE = new Section(0);
+
+    /**
+     * Location counters, one map per stripe
+     */
+    private final LongIntHashMap[] m_counts;
+
+    /**
+     * The section table, open addressing. Readers probe the table without
+     * locking, the table is changed only under the table lock.
+     */
+    private volatile AtomicReferenceArray<Section> m_table;
+
+    /**
+     * Number of sections in the table
+     */
+    private int m_sections;
+
+    /**
+     * Number of tombstones in the table
+     */
+    private int m_tombstones;
+
+    /**
+     * Section table lock
+     */
+    private final Object m_tableMutex = new Object();
+
+    public LocationIndex() {
+        m_counts = new LongIntHashMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            m_counts[i] = new LongIntHashMap(0);
+        }
+        m_table = new AtomicReferenceArray<Section>(MIN_TABLE);
+    }
+
+    private static long sectionKey(int x, int y, int z) {
+        return PackedPosition.pack(x >> 4, y >> 4, z >> 4);
+    }
+
+    private static int bitIndex(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static LongIntHashMap stripe(LongIntHashMap[] counts, long sectionKey) {
+        return counts[(hash(sectionKey) >>> 16) & (STRIPES - 1)];
+    }
+
+    /**
+     * Find the section without locking
+     *
+     * @param table
+     * @param key
+     * @return
+     */
+    private static Section find(AtomicReferenceArray<Section> table, long key) {
+        final int mask = table.length() - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            Section section = table.get(slot);
+            if (section == null) {
+                return null;
+            }
+            if (section != TOMBSTONE && section.m_key == key) {
+                return section;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Add the location
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void add(int x, int y, int z) {
+        final long key = sectionKey(x, y, z);
+        final LongIntHashMap counts = stripe(m_counts, key);
+
+        synchronized (counts) {
+            if (counts.add(PackedPosition.pack(x, y, z), 1) != 1) {
+                return;
+            }
+
+            Section section = find(m_table, key);
+            if (section == null) {
+                section = addSection(key);
+            }
+
+            final int idx = bitIndex(x, y, z);
+            setBit(section.m_bits, idx >> 6, 1L << (idx & 63));
+            section.m_count++;
+        }
+    }
+
+    /**
+     * Remove the location once
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void remove(int x, int y, int z) {
+        final long key = sectionKey(x, y, z);
+        final LongIntHashMap counts = stripe(m_counts, key);
+
+        synchronized (counts) {
+            final long position = PackedPosition.pack(x, y, z);
+            if (counts.get(position) == 0 || counts.add(position, -1) != 0) {
+                return;
+            }
+
+            final Section section = find(m_table, key);
+            if (section == null) {
+                return;
+            }
+
+            final int idx = bitIndex(x, y, z);
+            clearBit(section.m_bits, idx >> 6, 1L << (idx & 63));
+            section.m_count--;
+            if (section.m_count <= 0) {
+                removeSection(section);
+            }
+        }
+    }
+
+    /**
+     * Check if the location or any of its neighbours is in the index, this
+     * method does not lock
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param delta neighbourhood size
+     * @return
+     */
+    public boolean containsNear(int x, int y, int z, int delta) {
+        final AtomicReferenceArray<Section> table = m_table;
+
+        long lastKey = 0;
+        Section section = null;
+        boolean hasLast = false;
+        for (int px = x - delta; px <= x + delta; px++) {
+            for (int pz = z - delta; pz <= z + delta; pz++) {
+                for (int py = y - delta; py <= y + delta; py++) {
+                    final long key = sectionKey(px, py, pz);
+                    if (!hasLast || key != lastKey) {
+                        section = find(table, key);
+                        lastKey = key;
+                        hasLast = true;
+                    }
+
+                    if (section != null) {
+                        final int idx = bitIndex(px, py, pz);
+                        if ((section.m_bits.get(idx >> 6) & (1L << (idx & 63))) != 0) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static void setBit(AtomicLongArray bits, int i, long mask) {
+        long v = bits.get(i);
+        while (!bits.compareAndSet(i, v, v | mask)) {
+            v = bits.get(i);
+        }
+    }
+
+    private static void clearBit(AtomicLongArray bits, int i, long mask) {
+        long v = bits.get(i);
+        while (!bits.compareAndSet(i, v, v & ~mask)) {
+            v = bits.get(i);
+        }
+    }
+
+    /**
+     * Add new section to the table (stripe lock required)
+     *
+     * @param key
+     * @return
+     */
+    private Section addSection(long key) {
+        final Section result = new Section(key);
+        synchronized (m_tableMutex) {
+            AtomicReferenceArray<Section> table = m_table;
+            if ((m_sections + m_tombstones + 1) * 2 > table.length()) {
+                table = rebuild(Math.max(MIN_TABLE, Integer.highestOneBit(Math.max(1, m_sections) * 4)));
+            }
+
+            final int mask = table.length() - 1;
+            int slot = hash(key) & mask;
+            while (true) {
+                Section s = table.get(slot);
+                if (s == null || s == TOMBSTONE) {
+                    if (s == TOMBSTONE) {
+                        m_tombstones--;
+                    }
+                    table.set(slot, result);
+                    m_sections++;
+                    return result;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    /**
+     * Remove the section from the table (stripe lock required)
+     *
+     * @param section
+     */
+    private void removeSection(Section section) {
+        synchronized (m_tableMutex) {
+            final AtomicReferenceArray<Section> table = m_table;
+            final int mask = table.length() - 1;
+            int slot = hash(section.m_key) & mask;
+            while (true) {
+                Section s = table.get(slot);
+                if (s == null) {
+                    return;
+                }
+                if (s == section) {
+                    table.set(slot, TOMBSTONE);
+                    m_sections--;
+                    m_tombstones++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    /**
+     * Copy the live sections to a new table and publish it (table lock
+     * required). Readers of the old table still see valid sections.
+     *
+     * @param size
+     * @return
+     */
+    private AtomicReferenceArray<Section> rebuild(int size) {
+        final AtomicReferenceArray<Section> old = m_table;
+        final AtomicReferenceArray<Section> table = new AtomicReferenceArray<Section>(size);
+        final int mask = size - 1;
+        for (int i = 0; i < old.length(); i++) {
+            Section s = old.get(i);
+            if (s == null || s == TOMBSTONE) {
+                continue;
+            }
+
+            int slot = hash(s.m_key) & mask;
+            while (table.get(slot) != null) {
+                slot = (slot + 1) & mask;
+            }
+            table.set(slot, s);
+        }
+
+        m_tombstones = 0;
+        m_table = table;
+        return table;
+    }
+}
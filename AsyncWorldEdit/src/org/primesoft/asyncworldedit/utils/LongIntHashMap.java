@@ -0,0 +1,321 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing long to int hash map, no boxing and no allocations except
+ * for resizing.
+ *
+ * @author SBPrime
+ */
+public class LongIntHashMap {
+
+    /**
+     * Empty slot marker
+     */
+    private final static long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * Minimum table size
+     */
+    private final static int MIN_CAPACITY = 16;
+
+    /**
+     * The keys
+     */
+    private long[] m_keys;
+
+    /**
+     * The values
+     */
+    private int[] m_values;
+
+    /**
+     * Is the EMPTY key in the map
+     */
+    private boolean m_hasEmptyKey;
+
+    /**
+     * The EMPTY key value
+     */
+    private int m_emptyKeyValue;
+
+    /**
+     * Number of keys
+     */
+    private int m_size;
+
+    /**
+     * Value returned for missing keys
+     */
+    private final int m_missing;
+
+    /**
+     * Create new map
+     *
+     * @param missing value returned for missing keys
+     */
+    public LongIntHashMap(int missing) {
+        this(MIN_CAPACITY, missing);
+    }
+
+    /**
+     * Create new map
+     *
+     * @param capacity expected number of keys
+     * @param missing value returned for missing keys
+     */
+    public LongIntHashMap(int capacity, int missing) {
+        m_missing = missing;
+        allocate(tableSize(capacity));
+    }
+
+    private static int tableSize(int capacity) {
+        int result = MIN_CAPACITY;
+        while (result < capacity * 2 && result > 0) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    private void allocate(int size) {
+        m_keys = new long[size];
+        m_values = new int[size];
+        Arrays.fill(m_keys, EMPTY);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Find the key slot
+     *
+     * @param key
+     * @return slot or -1 if the key is not in the map
+     */
+    private int find(long key) {
+        final long[] keys = m_keys;
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            long k = keys[slot];
+            if (k == key) {
+                return slot;
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Number of keys
+     *
+     * @return
+     */
+    public int size() {
+        return m_size;
+    }
+
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == EMPTY) {
+            return m_hasEmptyKey;
+        }
+        return find(key) >= 0;
+    }
+
+    /**
+     * Get the key value
+     *
+     * @param key
+     * @return the value or the missing value
+     */
+    public int get(long key) {
+        if (key == EMPTY) {
+            return m_hasEmptyKey ? m_emptyKeyValue : m_missing;
+        }
+        int slot = find(key);
+        return slot >= 0 ? m_values[slot] : m_missing;
+    }
+
+    /**
+     * Set the key value
+     *
+     * @param key
+     * @param value
+     */
+    public void put(long key, int value) {
+        if (key == EMPTY) {
+            if (!m_hasEmptyKey) {
+                m_hasEmptyKey = true;
+                m_size++;
+            }
+            m_emptyKeyValue = value;
+            return;
+        }
+
+        final long[] keys = m_keys;
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            long k = keys[slot];
+            if (k == key) {
+                m_values[slot] = value;
+                return;
+            }
+            if (k == EMPTY) {
+                keys[slot] = key;
+                m_values[slot] = value;
+                m_size++;
+                if (m_size * 2 > keys.length) {
+                    rehash(keys.length << 1);
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Add the delta to the key value, the missing value is used as the
+     * initial value. The key is removed when the new value equals the
+     * missing value.
+     *
+     * @param key
+     * @param delta
+     * @return the new value
+     */
+    public int add(long key, int delta) {
+        int value = get(key) + delta;
+        if (value == m_missing) {
+            remove(key);
+        } else {
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Remove the key
+     *
+     * @param key
+     * @return the removed value or the missing value
+     */
+    public int remove(long key) {
+        if (key == EMPTY) {
+            if (!m_hasEmptyKey) {
+                return m_missing;
+            }
+            m_hasEmptyKey = false;
+            m_size--;
+            return m_emptyKeyValue;
+        }
+
+        int slot = find(key);
+        if (slot < 0) {
+            return m_missing;
+        }
+
+        final int result = m_values[slot];
+        final long[] keys = m_keys;
+        final int mask = keys.length - 1;
+
+        //Backward shift deletion, keeps the probe chains intact
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                m_values[gap] = m_values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        m_size--;
+        return result;
+    }
+
+    /**
+     * Get all keys
+     *
+     * @return
+     */
+    public long[] keys() {
+        final long[] result = new long[m_size];
+        int pos = 0;
+        if (m_hasEmptyKey) {
+            result[pos++] = EMPTY;
+        }
+        for (long key : m_keys) {
+            if (key != EMPTY) {
+                result[pos++] = key;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove all keys
+     */
+    public void clear() {
+        if (m_keys.length > MIN_CAPACITY && m_size * 8 < m_keys.length) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(m_keys, EMPTY);
+        }
+        m_hasEmptyKey = false;
+        m_size = 0;
+    }
+
+    private void rehash(int size) {
+        final long[] keys = m_keys;
+        final int[] values = m_values;
+        allocate(size);
+
+        final int mask = size - 1;
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            if (key == EMPTY) {
+                continue;
+            }
+            int slot = hash(key) & mask;
+            while (m_keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            m_keys[slot] = key;
+            m_values[slot] = values[i];
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.utils;
+
+import com.sk89q.worldedit.Vector;
+
+/**
+ * Packs block positions into a single long value. X and Z use 26 bits, Y
+ * uses 12 bits.
+ *
+ * @author SBPrime
+ */
+public final class PackedPosition {
+
+    private final static int XZ_BITS = 26;
+    private final static int Y_BITS = 12;
+    private final static long XZ_MASK = (1L << XZ_BITS) - 1;
+    private final static long Y_MASK = (1L << Y_BITS) - 1;
+    private final static int X_SHIFT = XZ_BITS + Y_BITS;
+    private final static int Z_SHIFT = Y_BITS;
+
+    private PackedPosition() {
+    }
+
+    /**
+     * Pack the block position
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public static long pack(int x, int y, int z) {
+        return ((x & XZ_MASK) << X_SHIFT) | ((z & XZ_MASK) << Z_SHIFT) | (y & Y_MASK);
+    }
+
+    /**
+     * Pack the block position
+     *
+     * @param location
+     * @return
+     */
+    public static long pack(Vector location) {
+        return pack(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    public static int getX(long position) {
+        return (int) (position >> X_SHIFT);
+    }
+
+    public static int getY(long position) {
+        return (int) (position & Y_MASK);
+    }
+
+    public static int getZ(long position) {
+        return (int) ((position << XZ_BITS) >> X_SHIFT);
+    }
+
+    /**
+     * Convert packed position to WorldEdit vector
+     *
+     * @param position
+     * @return
+     */
+    public static Vector toVector(long position) {
+        return new Vector(getX(position), getY(position), getZ(position));
+    }
+}
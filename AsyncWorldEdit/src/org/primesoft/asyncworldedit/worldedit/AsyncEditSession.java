@@ -30,18 +30,22 @@ import com.sk89q.worldedit.MaxChangedBlocksException;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.bags.BlockBag;
 import com.sk89q.worldedit.blocks.BaseBlock;
+import com.sk89q.worldedit.blocks.BlockID;
+import com.sk89q.worldedit.blocks.BlockType;
 import com.sk89q.worldedit.expression.ExpressionException;
 import com.sk89q.worldedit.masks.Mask;
 import com.sk89q.worldedit.patterns.Pattern;
 import com.sk89q.worldedit.regions.Region;
 import com.sk89q.worldedit.regions.RegionOperationException;
 import com.sk89q.worldedit.util.TreeGenerator;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.bukkit.World;
+import org.bukkit.block.Block;
 import org.bukkit.scheduler.BukkitScheduler;
 import org.primesoft.asyncworldedit.BlocksHubIntegration;
 import org.primesoft.asyncworldedit.ConfigProvider;
@@ -132,6 +136,16 @@ public class AsyncEditSession extends EditSession {
     private Mask m_mask;
     private Mask m_asyncMask;
 
+    /**
+     * The compact undo history, null if WorldEdit history is used
+     */
+    private final CompactHistory m_history;
+
+    /**
+     * The disk history store, null if disabled
+     */
+    private final HistoryStore m_historyStore;
+
     public String getPlayer() {
         return m_player;
     }
@@ -155,6 +169,11 @@ public class AsyncEditSession extends EditSession {
         m_asyncForced = false;
         m_asyncDisabled = false;
         m_wrapper = m_plugin.getPlayerManager().getPlayer(player);
+        m_history = ConfigProvider.isCompactHistory() ? new CompactHistory() : null;
+        m_historyStore = m_history != null ? plugin.getHistoryStore() : null;
+        if (m_historyStore != null) {
+            m_historyStore.register(player, this);
+        }
     }
 
     public AsyncEditSession(AsyncEditSessionFactory factory, PluginMain plugin,
@@ -177,6 +196,11 @@ public class AsyncEditSession extends EditSession {
         m_asyncForced = false;
         m_asyncDisabled = false;
         m_wrapper = m_plugin.getPlayerManager().getPlayer(player);
+        m_history = ConfigProvider.isCompactHistory() ? new CompactHistory() : null;
+        m_historyStore = m_history != null ? plugin.getHistoryStore() : null;
+        if (m_historyStore != null) {
+            m_historyStore.register(player, this);
+        }
     }
 
     @Override
@@ -186,6 +210,11 @@ public class AsyncEditSession extends EditSession {
 
     @Override
     public int getBlockType(Vector pt) {
+        BaseBlock snapshot = localBlockGet(pt);
+        if (snapshot != null) {
+            return snapshot.getType();
+        }
+
         try {
             return super.getBlockType(pt);
         } catch (Exception ex) {
@@ -200,20 +229,29 @@ public class AsyncEditSession extends EditSession {
 
     @Override
     public BaseBlock getBlock(Vector pt) {
-        try {
-            return super.getBlock(pt);
-        } catch (Exception ex) {
-            /*
-             * Exception here indicates that async block get is not
-             * available. Therefore use the queue fallback.
-             */
+        BaseBlock result = localBlockGet(pt);
+        if (result == null) {
+            try {
+                result = super.getBlock(pt);
+            } catch (Exception ex) {
+                /*
+                 * Exception here indicates that async block get is not
+                 * available. Therefore use the queue fallback.
+                 */
+                result = queueBlockGet(pt);
+            }
         }
 
-        return queueBlockGet(pt);
+        return result;
     }
 
     @Override
     public int getBlockData(Vector pt) {
+        BaseBlock snapshot = localBlockGet(pt);
+        if (snapshot != null) {
+            return snapshot.getData();
+        }
+
         try {
             return super.getBlockData(pt);
         } catch (Exception ex) {
@@ -228,6 +266,11 @@ public class AsyncEditSession extends EditSession {
 
     @Override
     public BaseBlock rawGetBlock(Vector pt) {
+        BaseBlock snapshot = localBlockGet(pt);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
         try {
             return doRawGetBlock(pt);
         } catch (Exception ex) {
@@ -239,6 +282,31 @@ public class AsyncEditSession extends EditSession {
         return queueBlockGet(pt);
     }
 
+    /**
+     * Read the block from the job pending writes or the job chunk snapshots
+     *
+     * @param pt
+     * @return the block or null if the block shuld by read from the world
+     */
+    private BaseBlock localBlockGet(Vector pt) {
+        JobContext context = JobContext.current();
+        if (context == null) {
+            return null;
+        }
+
+        BaseBlock result = context.getWrite(pt);
+        if (result != null || m_blockPlacer.isMainTask()) {
+            return result;
+        }
+
+        SnapshotCache snapshots = context.getSnapshots();
+        if (snapshots == null) {
+            return null;
+        }
+
+        return snapshots.getBlock(this, pt);
+    }
+
     public BaseBlock doRawGetBlock(Vector pt) {
         return super.rawGetBlock(pt);
     }
@@ -249,7 +317,19 @@ public class AsyncEditSession extends EditSession {
         }
 
         if (m_asyncForced || ((m_wrapper == null || m_wrapper.getMode()) && !m_asyncDisabled)) {
-            return m_blockPlacer.addTasks(m_player, new BlockPlacerBlockEntry(this, jobId, pt, block));
+            JobContext context = JobContext.current();
+            if (context != null && context.getJobId() != jobId) {
+                context = null;
+            }
+
+            if (!m_blockPlacer.addBlock(m_player, this, jobId, pt, block)) {
+                return false;
+            }
+
+            if (context != null) {
+                context.recordWrite(pt, block);
+            }
+            return true;
         } else {
             return doRawSetBlock(pt, block);
         }
@@ -294,7 +374,7 @@ public class AsyncEditSession extends EditSession {
     public boolean setBlock(Vector pt, BaseBlock block, int jobId)
             throws MaxChangedBlocksException {
         m_jobId = jobId;
-        boolean r = super.setBlock(pt, block);
+        boolean r = setBlock(pt, block);
         m_jobId = -1;
         return r;
     }
@@ -349,7 +429,12 @@ public class AsyncEditSession extends EditSession {
 
         if (!isAsync) {
             //doUndo(sess);
-            session.undo(sess);
+            runWithHistory(new Runnable() {
+                @Override
+                public void run() {
+                    session.undo(sess);
+                }
+            });
             return;
         }
 
@@ -367,14 +452,139 @@ public class AsyncEditSession extends EditSession {
                 });
     }
 
-    public UndoSession doUndo() {
-        UndoSession result = new UndoSession();
-        super.undo(result);
-        return result;
+    @Override
+    public boolean setBlock(Vector pt, BaseBlock block)
+            throws MaxChangedBlocksException {
+        if (m_history == null) {
+            return super.setBlock(pt, block);
+        }
+
+        Mask mask = getMask();
+        if (mask != null && !mask.matches(this, pt.toBlockVector())) {
+            return false;
+        }
+
+        m_history.record(pt, getBlock(pt), block);
+        int limit = getBlockChangeLimit();
+        if (limit != -1 && m_history.size() > limit) {
+            throw new MaxChangedBlocksException(limit);
+        }
+
+        return smartSetBlock(pt, block);
+    }
+
+    @Override
+    public void rememberChange(Vector pt, BaseBlock existing, BaseBlock block) {
+        if (m_history == null) {
+            super.rememberChange(pt, existing, block);
+        } else {
+            m_history.record(pt, existing, block);
+        }
+    }
+
+    @Override
+    public int getBlockChangeCount() {
+        return m_history == null ? super.getBlockChangeCount() : m_history.size();
+    }
+
+    /**
+     * Is the compact undo history used
+     *
+     * @return
+     */
+    public boolean hasCompactHistory() {
+        return m_history != null;
+    }
+
+    /**
+     * Estimated memory used by the compact undo history
+     *
+     * @return bytes, 0 if WorldEdit history is used
+     */
+    public long getHistoryMemory() {
+        return m_history == null ? 0 : m_history.getMemory();
+    }
+
+    /**
+     * Serialize the compact undo history
+     *
+     * @return the history or null if it cannot by serialized
+     * @throws IOException
+     */
+    public byte[] exportHistory() throws IOException {
+        return m_history == null ? null : m_history.export();
+    }
+
+    /**
+     * Replace the compact undo history with the serialized history
+     *
+     * @param data the history serialized by exportHistory
+     * @return false if the compact history is not used
+     */
+    public boolean restoreHistory(byte[] data) {
+        if (m_history == null) {
+            return false;
+        }
+
+        m_history.restore(data);
+        return true;
+    }
+
+    /**
+     * Run the main thread history operation. A stored compact history is
+     * loaded by an async task first, the history store is never read on
+     * the main thread.
+     *
+     * @param operation
+     */
+    private void runWithHistory(final Runnable operation) {
+        if (m_history == null || !m_history.isStored()) {
+            operation.run();
+            return;
+        }
+
+        m_schedule.runTaskAsynchronously(m_plugin, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    m_history.load();
+                } catch (RuntimeException ex) {
+                    PluginMain.log("Unable to load the stored history: " + ex.getMessage());
+                    PluginMain.say(m_player, "Unable to load the stored undo history.");
+                    return;
+                }
+
+                m_schedule.runTask(m_plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        //The history may by stored again before this task runs
+                        runWithHistory(operation);
+                    }
+                });
+            }
+        });
+    }
+
+    public void doUndo(EditSession session) {
+        super.undo(session);
+    }
+
+    /**
+     * Undo the compact history
+     *
+     * @param session target session
+     * @param cancelable the job session
+     */
+    public void doUndo(EditSession session, CancelabeEditSession cancelable) {
+        m_history.undo(session, cancelable);
     }
 
     public void doRedo(EditSession session) {
-        super.redo(session);
+        if (m_history == null) {
+            super.redo(session);
+        } else {
+            m_history.redo(session, null);
+        }
     }
 
     @Override
@@ -397,7 +607,12 @@ public class AsyncEditSession extends EditSession {
         final int jobId = getJobId();
         final CancelabeEditSession session = new CancelabeEditSession(this, mask, jobId);
         if (!isAsync) {
-            session.redo(sess);
+            runWithHistory(new Runnable() {
+                @Override
+                public void run() {
+                    session.redo(sess);
+                }
+            });
             //doRedo(sess);
             return;
         }
@@ -1516,14 +1731,40 @@ public class AsyncEditSession extends EditSession {
      * @param job
      */
     public void removeAsync(BlockPlacerJobEntry job) {
+        boolean idle;
         synchronized (m_asyncTasks) {
             m_asyncTasks.remove(job);
+            idle = m_asyncTasks.isEmpty();
+        }
+
+        if (idle && m_historyStore != null) {
+            m_historyStore.update(m_player);
         }
     }
 
+    /**
+     * Has the session no running async jobs
+     *
+     * @return
+     */
+    boolean isIdle() {
+        synchronized (m_asyncTasks) {
+            return m_asyncTasks.isEmpty();
+        }
+    }
+
+    /**
+     * The compact undo history
+     *
+     * @return the history or null if WorldEdit history is used
+     */
+    CompactHistory getCompactHistory() {
+        return m_history;
+    }
+
     @Override
     public int size() {
-        final int result = super.size();
+        final int result = m_history == null ? super.size() : m_history.size();
         synchronized (m_asyncTasks) {
             if (result <= 0 && m_asyncTasks.size() > 0) {
                 return 1;
@@ -1535,7 +1776,7 @@ public class AsyncEditSession extends EditSession {
     public boolean doRawSetBlock(Vector location, BaseBlock block) {
         String player = getPlayer();
         World w = getCBWorld();
-        BaseBlock oldBlock = getBlock(location);
+        BaseBlock oldBlock = doRawGetBlock(location);
 
         if (m_mask != null) {
             if (!m_mask.matches(this, location)) {
@@ -1543,6 +1784,13 @@ public class AsyncEditSession extends EditSession {
             }
         }
 
+        if (ConfigProvider.isSkipNoOpWrites() && oldBlock != null
+                && BlockPlacerBlockSegment.canPack(block)
+                && oldBlock.getType() == block.getType()
+                && oldBlock.getData() == block.getData()) {
+            return false;
+        }
+
         boolean success = super.rawSetBlock(location, block);
 
         if (success && w != null) {
@@ -1551,6 +1799,45 @@ public class AsyncEditSession extends EditSession {
         return success;
     }
 
+    /**
+     * Set the block without allocating the location and block objects.
+     * Blocks that need the WorldEdit processing (mask, block bag,
+     * containers) use the WorldEdit path.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param type
+     * @param data
+     * @return
+     */
+    public boolean doRawSetBlock(int x, int y, int z, int type, int data) {
+        final World w = m_world;
+        if (w == null || m_mask != null || getBlockBag() != null) {
+            return doRawSetBlock(new Vector(x, y, z), new BaseBlock(type, data));
+        }
+        if (y < 0 || y >= w.getMaxHeight() || !getWorld().isValidBlockType(type)) {
+            return false;
+        }
+
+        final int oldType = w.getBlockTypeIdAt(x, y, z);
+        if (oldType == BlockID.ICE || BlockType.isContainerBlock(oldType)) {
+            return doRawSetBlock(new Vector(x, y, z), new BaseBlock(type, data));
+        }
+
+        final Block block = w.getBlockAt(x, y, z);
+        final int oldData = block.getData() & 0xff;
+        if (ConfigProvider.isSkipNoOpWrites() && oldType == type && oldData == data) {
+            return false;
+        }
+
+        final boolean success = block.setTypeIdAndData(type, (byte) data, !hasFastMode());
+        if (success) {
+            m_bh.logBlock(getPlayer(), w, x, y, z, (oldType << 8) | oldData, (type << 8) | data);
+        }
+        return success;
+    }
+
     public void doSetMask(Mask mask) {
         super.setMask(mask);
         m_mask = mask;
@@ -1617,22 +1904,12 @@ public class AsyncEditSession extends EditSession {
      * @return
      */
     private BaseBlock queueBlockGet(Vector pt) {
-        BlockPlacerGetBlockEntry getBlock = new BlockPlacerGetBlockEntry(this, m_jobId, pt);
         if (m_blockPlacer.isMainTask()) {
             return doRawGetBlock(pt);
         }
 
-        final Object mutex = getBlock.getMutex();
-
-        m_blockPlacer.addGetTask(getBlock);
-        synchronized (mutex) {
-            while (getBlock.getResult() == null) {
-                try {
-                    mutex.wait();
-                } catch (InterruptedException ex) {
-                }
-            }
-        }
-        return getBlock.getResult();
+        BlockPlacerGetBlockEntry getBlock = new BlockPlacerGetBlockEntry(this, pt);
+        return ReadService.get(m_blockPlacer.addGetTask(getCBWorld(),
+                pt.getBlockX() >> 4, pt.getBlockZ() >> 4, getBlock));
     }
 }
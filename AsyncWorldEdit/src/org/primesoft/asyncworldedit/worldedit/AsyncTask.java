@@ -65,6 +65,7 @@ public abstract class AsyncTask extends BukkitRunnable {
 
     @Override
     public void run() {
+        JobContext.begin(m_job);
         try {
             m_job.setStatus(BlockPlacerJobEntry.JobStatus.Preparing);
             if (ConfigProvider.isTalkative()) {
@@ -87,6 +88,13 @@ public abstract class AsyncTask extends BukkitRunnable {
             m_blockPlacer.addTasks(m_player, m_job);
             if (ConfigProvider.isTalkative()) {
                 PluginMain.say(m_player, ChatColor.LIGHT_PURPLE + "Blocks processed: " + ChatColor.WHITE + cnt);
+
+                AsyncEditSession parent = m_editSession.getParent();
+                if (parent.hasCompactHistory()) {
+                    PluginMain.say(m_player, ChatColor.LIGHT_PURPLE + "Undo history: " + ChatColor.WHITE
+                            + parent.getBlockChangeCount() + ChatColor.LIGHT_PURPLE + " blocks, " + ChatColor.WHITE
+                            + (parent.getHistoryMemory() / 1024) + "KB");
+                }
             }
         } catch (MaxChangedBlocksException ex) {
             PluginMain.say(m_player, ChatColor.RED + "Maximum block change limit.");
@@ -95,6 +103,8 @@ public abstract class AsyncTask extends BukkitRunnable {
                 PluginMain.say(m_player, ChatColor.LIGHT_PURPLE + "Job canceled.");
                 m_job.setStatus(BlockPlacerJobEntry.JobStatus.Done);
             }
+        } finally {
+            JobContext.end();
         }
 
         m_job.taskDone();
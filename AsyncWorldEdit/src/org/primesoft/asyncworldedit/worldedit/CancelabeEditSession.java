@@ -29,8 +29,6 @@ import com.sk89q.worldedit.blocks.BaseBlock;
 import com.sk89q.worldedit.masks.Mask;
 import com.sk89q.worldedit.patterns.Pattern;
 import com.sk89q.worldedit.regions.Region;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -252,49 +250,20 @@ public class CancelabeEditSession extends EditSession {
     }
 
     public void doUndo(EditSession sess) {
-        //checkAsync(WorldeditOperations.undo);
-        UndoSession undoSession = m_parent.doUndo();
-
-//        Mask oldMask = sess.getMask();
-//        sess.setMask(getMask());
-
-        final Map.Entry<Vector, BaseBlock>[] blocks = undoSession.getEntries();
-        final HashMap<Integer, HashMap<Integer, HashSet<Integer>>> placedBlocks = new HashMap<Integer, HashMap<Integer, HashSet<Integer>>>();
-
-        for (int i = blocks.length - 1; i >= 0; i--) {
-            Map.Entry<Vector, BaseBlock> entry = blocks[i];
-            Vector pos = entry.getKey();
-            BaseBlock block = entry.getValue();
-
-            int x = pos.getBlockX();
-            int y = pos.getBlockY();
-            int z = pos.getBlockZ();
-            boolean ignore = false;
-
-            HashMap<Integer, HashSet<Integer>> mapX = placedBlocks.get(x);
-            if (mapX == null) {
-                mapX = new HashMap<Integer, HashSet<Integer>>();
-                placedBlocks.put(x, mapX);
-            }
+        if (m_parent.hasCompactHistory()) {
+            m_parent.doUndo(sess, this);
+            return;
+        }
 
-            HashSet<Integer> mapY = mapX.get(y);
-            if (mapY == null) {
-                mapY = new HashSet<Integer>();
-                mapX.put(y, mapY);
-            }
-            if (mapY.contains(z)) {
-                ignore = true;
-            } else {
-                mapY.add(z);
-            }
+        //Find the positions changed more than once
+        UndoSession scan = new UndoSession();
+        m_parent.doUndo(scan);
+        scan.clearSeen();
 
-            if (!ignore) {
-                sess.smartSetBlock(pos, block);
-            }
-        }
+        //Stream the last change of each position to the session
+        m_parent.doUndo(new UndoSession(scan, this, sess));
 
         sess.flushQueue();
-//        sess.setMask(oldMask);
     }
 
     @Override
@@ -71,6 +71,7 @@ public abstract class ClipboardAsyncTask extends BukkitRunnable {
 
     @Override
     public void run() {
+        JobContext.begin(m_job);
         try {
             m_job.setStatus(BlockPlacerJobEntry.JobStatus.Preparing);
             if (ConfigProvider.isTalkative()) {
@@ -92,6 +93,8 @@ public abstract class ClipboardAsyncTask extends BukkitRunnable {
             if (ex.getCause() instanceof CancelabeEditSession.SessionCanceled) {
                 PluginMain.say(m_player, ChatColor.LIGHT_PURPLE + "Job canceled.");
             }
+        } finally {
+            JobContext.end();
         }
 
         m_job.taskDone();
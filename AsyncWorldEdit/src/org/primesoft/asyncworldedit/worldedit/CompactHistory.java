@@ -0,0 +1,657 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.worldedit;
+
+import com.sk89q.worldedit.EditSession;
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.primesoft.asyncworldedit.blockPlacer.BlockPlacerBlockSegment;
+import org.primesoft.asyncworldedit.utils.LongIntHashMap;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+
+/**
+ * Compact edit session history. The changes are stored per chunk section,
+ * each changed position has one entry with the first old block and the
+ * last new block. The blocks are stored in a per-section palette and the
+ * entries hold bit packed palette indices.
+ *
+ * @author SBPrime
+ */
+public class CompactHistory {
+
+    /**
+     * Number of section entries when the position index is created
+     */
+    private final static int INDEX_THRESHOLD = 64;
+
+    /**
+     * Number of blocks between the cancel checks
+     */
+    private final static int BATCH_SIZE = 4096;
+
+    /**
+     * Bit packed unsigned integers
+     */
+    private static class PackedInts {
+
+        private long[] m_data = new long[1];
+        private int m_bits = 1;
+
+        public int get(int i) {
+            final long bit = (long) i * m_bits;
+            final int word = (int) (bit >>> 6);
+            final int shift = (int) (bit & 63);
+            final long mask = (1L << m_bits) - 1;
+
+            long value = m_data[word] >>> shift;
+            if (shift + m_bits > 64) {
+                value |= m_data[word + 1] << (64 - shift);
+            }
+            return (int) (value & mask);
+        }
+
+        public void set(int i, int value) {
+            final long bit = (long) i * m_bits;
+            final int word = (int) (bit >>> 6);
+            final int shift = (int) (bit & 63);
+            final long mask = (1L << m_bits) - 1;
+            final long v = value & mask;
+
+            m_data[word] = (m_data[word] & ~(mask << shift)) | (v << shift);
+            if (shift + m_bits > 64) {
+                final int high = 64 - shift;
+                m_data[word + 1] = (m_data[word + 1] & ~(mask >>> high)) | (v >>> high);
+            }
+        }
+
+        /**
+         * Make sure the array can hold the values
+         *
+         * @param count number of values
+         * @param bits value size
+         */
+        public void ensure(int count, int bits) {
+            final int words = (int) (((long) count * Math.max(bits, m_bits) + 63) >>> 6);
+            if (bits > m_bits) {
+                final PackedInts old = new PackedInts();
+                old.m_data = m_data;
+                old.m_bits = m_bits;
+
+                final int stored = (int) ((old.m_data.length * 64L) / old.m_bits);
+                m_data = new long[Math.max(words, m_data.length)];
+                m_bits = bits;
+                for (int i = Math.min(count, stored) - 1; i >= 0; i--) {
+                    set(i, old.get(i));
+                }
+            } else if (words > m_data.length) {
+                m_data = Arrays.copyOf(m_data, Math.max(words, m_data.length * 2));
+            }
+        }
+
+        public long getMemory() {
+            return 16 + m_data.length * 8L;
+        }
+
+        public void write(DataOutput out, int count) throws IOException {
+            final int words = (int) (((long) count * m_bits + 63) >>> 6);
+            out.writeByte(m_bits);
+            out.writeInt(words);
+            for (int i = 0; i < words; i++) {
+                out.writeLong(m_data[i]);
+            }
+        }
+
+        public void read(DataInput in) throws IOException {
+            m_bits = in.readByte();
+            m_data = new long[Math.max(1, in.readInt())];
+            for (int i = 0; i < m_data.length; i++) {
+                m_data[i] = in.readLong();
+            }
+        }
+    }
+
+    /**
+     * History of one chunk section
+     */
+    private static class Section {
+
+        private final long m_key;
+
+        /**
+         * Entry positions in the section (y, z, x)
+         */
+        private short[] m_positions = new short[8];
+
+        /**
+         * Old block palette indices
+         */
+        private final PackedInts m_old = new PackedInts();
+
+        /**
+         * New block palette indices
+         */
+        private final PackedInts m_new = new PackedInts();
+
+        /**
+         * Number of entries
+         */
+        private int m_count;
+
+        /**
+         * Changed positions
+         */
+        private final long[] m_changed = new long[64];
+
+        /**
+         * Entry number (+1) for the position, created for large sections
+         */
+        private short[] m_index;
+
+        /**
+         * The block palette
+         */
+        private final List<BaseBlock> m_palette = new ArrayList<BaseBlock>();
+
+        /**
+         * Palette index for the packed plain blocks
+         */
+        private final LongIntHashMap m_paletteIndex = new LongIntHashMap(-1);
+
+        /**
+         * Palette index size
+         */
+        private int m_bits = 1;
+
+        public Section(long key) {
+            m_key = key;
+        }
+
+        private int getPaletteId(BaseBlock block) {
+            final boolean plain = BlockPlacerBlockSegment.canPack(block);
+            if (plain) {
+                final int id = m_paletteIndex.get(BlockPlacerBlockSegment.packBlock(block));
+                if (id >= 0) {
+                    return id;
+                }
+            }
+
+            final int id = m_palette.size();
+            m_palette.add(block);
+            if (plain) {
+                m_paletteIndex.put(BlockPlacerBlockSegment.packBlock(block), id);
+            }
+
+            while (id >= (1 << m_bits)) {
+                m_bits++;
+            }
+            return id;
+        }
+
+        private int findEntry(int idx) {
+            if (m_index != null) {
+                return m_index[idx] - 1;
+            }
+            for (int i = 0; i < m_count; i++) {
+                if (m_positions[i] == idx) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Record the change
+         *
+         * @param idx position in the section
+         * @param oldBlock
+         * @param newBlock
+         * @return true if a new entry was added
+         */
+        public boolean record(int idx, BaseBlock oldBlock, BaseBlock newBlock) {
+            final long mask = 1L << (idx & 63);
+            if ((m_changed[idx >> 6] & mask) != 0) {
+                final int entry = findEntry(idx);
+                final int newId = getPaletteId(newBlock);
+                m_old.ensure(m_count, m_bits);
+                m_new.ensure(m_count, m_bits);
+                m_new.set(entry, newId);
+                return false;
+            }
+
+            final int oldId = getPaletteId(oldBlock);
+            final int newId = getPaletteId(newBlock);
+            final int entry = m_count;
+            if (entry == m_positions.length) {
+                m_positions = Arrays.copyOf(m_positions, entry * 2);
+            }
+            m_old.ensure(entry + 1, m_bits);
+            m_new.ensure(entry + 1, m_bits);
+
+            m_positions[entry] = (short) idx;
+            m_old.set(entry, oldId);
+            m_new.set(entry, newId);
+            m_changed[idx >> 6] |= mask;
+            m_count++;
+
+            if (m_index != null) {
+                m_index[idx] = (short) (entry + 1);
+            } else if (m_count > INDEX_THRESHOLD) {
+                m_index = new short[4096];
+                for (int i = 0; i < m_count; i++) {
+                    m_index[m_positions[i]] = (short) (i + 1);
+                }
+            }
+            return true;
+        }
+
+        public long getMemory() {
+            long result = 64 + m_positions.length * 2L + m_changed.length * 8L
+                    + m_old.getMemory() + m_new.getMemory()
+                    + m_palette.size() * 40L;
+            if (m_index != null) {
+                result += m_index.length * 2L;
+            }
+            return result;
+        }
+
+        /**
+         * Write the section, the palette has to contain only plain blocks
+         *
+         * @param out
+         * @throws IOException
+         */
+        public void write(DataOutput out) throws IOException {
+            out.writeLong(m_key);
+            out.writeInt(m_count);
+            for (int i = 0; i < m_count; i++) {
+                out.writeShort(m_positions[i]);
+            }
+            out.writeInt(m_palette.size());
+            for (BaseBlock block : m_palette) {
+                out.writeInt(BlockPlacerBlockSegment.packBlock(block));
+            }
+            m_old.write(out, m_count);
+            m_new.write(out, m_count);
+        }
+
+        /**
+         * Read the section written by write
+         *
+         * @param in
+         * @return
+         * @throws IOException
+         */
+        public static Section read(DataInput in) throws IOException {
+            final Section result = new Section(in.readLong());
+            final int count = in.readInt();
+            result.m_positions = new short[Math.max(8, count)];
+            for (int i = 0; i < count; i++) {
+                final short idx = in.readShort();
+                result.m_positions[i] = idx;
+                result.m_changed[idx >> 6] |= 1L << (idx & 63);
+            }
+            result.m_count = count;
+
+            final int paletteSize = in.readInt();
+            for (int i = 0; i < paletteSize; i++) {
+                final int block = in.readInt();
+                result.m_palette.add(BlockPlacerBlockSegment.unpackBlock(block));
+                result.m_paletteIndex.put(block, i);
+            }
+            while (paletteSize > (1 << result.m_bits)) {
+                result.m_bits++;
+            }
+            result.m_old.read(in);
+            result.m_new.read(in);
+
+            if (count > INDEX_THRESHOLD) {
+                result.m_index = new short[4096];
+                for (int i = 0; i < count; i++) {
+                    result.m_index[result.m_positions[i]] = (short) (i + 1);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The sections in the first change order
+     */
+    private final LinkedHashMap<Long, Section> m_sections = new LinkedHashMap<Long, Section>();
+
+    /**
+     * Last used section
+     */
+    private Section m_lastSection;
+
+    /**
+     * Number of changed positions
+     */
+    private int m_size;
+
+    /**
+     * Number of changes, used to detect changes made while the history
+     * was written to the store
+     */
+    private int m_version;
+
+    /**
+     * The history contains only plain blocks and can by stored
+     */
+    private boolean m_isStorable = true;
+
+    /**
+     * The stored history, null if the history is in memory
+     */
+    private volatile HistoryStore.Entry m_stored;
+
+    /**
+     * Number of changed positions
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * Record the block change
+     *
+     * @param location
+     * @param oldBlock
+     * @param newBlock
+     */
+    public void record(Vector location, BaseBlock oldBlock, BaseBlock newBlock) {
+        if (oldBlock == null || newBlock == null) {
+            return;
+        }
+
+        load();
+        synchronized (this) {
+            doRecord(location, oldBlock, newBlock);
+        }
+    }
+
+    private void doRecord(Vector location, BaseBlock oldBlock, BaseBlock newBlock) {
+        m_version++;
+        if (m_isStorable) {
+            m_isStorable = BlockPlacerBlockSegment.canPack(oldBlock)
+                    && BlockPlacerBlockSegment.canPack(newBlock);
+        }
+
+        final int x = location.getBlockX();
+        final int y = location.getBlockY();
+        final int z = location.getBlockZ();
+        final long key = PackedPosition.pack(x >> 4, y >> 4, z >> 4);
+
+        Section section = m_lastSection;
+        if (section == null || section.m_key != key) {
+            section = m_sections.get(key);
+            if (section == null) {
+                section = new Section(key);
+                m_sections.put(key, section);
+            }
+            m_lastSection = section;
+        }
+
+        if (section.record(((y & 15) << 8) | ((z & 15) << 4) | (x & 15), oldBlock, newBlock)) {
+            m_size++;
+        }
+    }
+
+    /**
+     * Set the old blocks in the session
+     *
+     * @param session
+     * @param cancelable the job session, may by null
+     */
+    public void undo(EditSession session, CancelabeEditSession cancelable) {
+        apply(session, cancelable, true);
+    }
+
+    /**
+     * Set the new blocks in the session
+     *
+     * @param session
+     * @param cancelable the job session, may by null
+     */
+    public void redo(EditSession session, CancelabeEditSession cancelable) {
+        apply(session, cancelable, false);
+    }
+
+    private void apply(EditSession session, CancelabeEditSession cancelable, boolean undo) {
+        Section[] sections = null;
+        final HistoryStore.Entry stored;
+        synchronized (this) {
+            stored = m_stored;
+            if (stored == null) {
+                sections = m_sections.values().toArray(new Section[0]);
+            }
+        }
+        if (stored != null) {
+            //The stored history is read for this pass only, it stays in the store
+            sections = readSections(stored.read());
+        }
+
+        int batch = 0;
+        for (int s = 0; s < sections.length; s++) {
+            final Section section = sections[undo ? sections.length - 1 - s : s];
+            final int bx = PackedPosition.getX(section.m_key) << 4;
+            final int by = PackedPosition.getY(section.m_key) << 4;
+            final int bz = PackedPosition.getZ(section.m_key) << 4;
+            final PackedInts ids = undo ? section.m_old : section.m_new;
+
+            for (int i = 0; i < section.m_count; i++) {
+                if (++batch >= BATCH_SIZE) {
+                    batch = 0;
+                    if (cancelable != null && cancelable.isCanceled()) {
+                        throw new IllegalArgumentException(cancelable.new SessionCanceled());
+                    }
+                }
+
+                final int idx = section.m_positions[i];
+                final Vector location = new Vector(bx + (idx & 15), by + (idx >> 8), bz + ((idx >> 4) & 15));
+                session.smartSetBlock(location, section.m_palette.get(ids.get(i)));
+            }
+        }
+        session.flushQueue();
+    }
+
+    /**
+     * Estimated memory used by the history
+     *
+     * @return bytes
+     */
+    public synchronized long getMemory() {
+        if (m_stored != null) {
+            return 0;
+        }
+
+        long result = 0;
+        for (Iterator<Section> it = m_sections.values().iterator(); it.hasNext();) {
+            result += it.next().getMemory() + 48;
+        }
+        return result;
+    }
+
+    /**
+     * Is the history written to the history store
+     *
+     * @return
+     */
+    public boolean isStored() {
+        return m_stored != null;
+    }
+
+    /**
+     * Can the history by written to the history store
+     *
+     * @return
+     */
+    public synchronized boolean isStorable() {
+        return m_isStorable && m_stored == null && m_size > 0;
+    }
+
+    /**
+     * Serialize the history
+     *
+     * @param version receives the history version
+     * @return the serialized history or null if the history cannot by stored
+     * @throws IOException
+     */
+    synchronized byte[] save(int[] version) throws IOException {
+        if (!isStorable()) {
+            return null;
+        }
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(m_sections.size());
+        for (Section section : m_sections.values()) {
+            section.write(out);
+        }
+        out.flush();
+
+        version[0] = m_version;
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Release the memory history after it was written to the store
+     *
+     * @param version the saved history version
+     * @param entry the store entry
+     * @return false if the history was changed after it was saved
+     */
+    synchronized boolean detach(int version, HistoryStore.Entry entry) {
+        if (m_version != version || m_stored != null) {
+            return false;
+        }
+
+        m_sections.clear();
+        m_lastSection = null;
+        m_stored = entry;
+        return true;
+    }
+
+    /**
+     * Serialize the history, the stored history is read from the store
+     *
+     * @return the serialized history or null if the history cannot by
+     * serialized
+     * @throws IOException
+     */
+    public byte[] export() throws IOException {
+        final HistoryStore.Entry stored = m_stored;
+        if (stored != null) {
+            try {
+                return stored.read();
+            } catch (RuntimeException ex) {
+                if (m_stored == stored) {
+                    throw ex;
+                }
+                //The history was loaded back to memory
+            }
+        }
+        return save(new int[1]);
+    }
+
+    /**
+     * Replace the history with the serialized history
+     *
+     * @param data the history serialized by export
+     */
+    public void restore(byte[] data) {
+        final Section[] sections = readSections(data);
+        final HistoryStore.Entry stored;
+        synchronized (this) {
+            stored = m_stored;
+            m_stored = null;
+            m_sections.clear();
+            m_lastSection = null;
+            m_size = 0;
+            for (Section section : sections) {
+                m_sections.put(section.m_key, section);
+                m_size += section.m_count;
+            }
+            m_version++;
+        }
+        if (stored != null) {
+            stored.release();
+        }
+    }
+
+    /**
+     * Load the stored history back to memory
+     */
+    void load() {
+        final HistoryStore.Entry stored = m_stored;
+        if (stored == null) {
+            return;
+        }
+
+        final Section[] sections = readSections(stored.read());
+        synchronized (this) {
+            if (m_stored != stored) {
+                return;
+            }
+            for (Section section : sections) {
+                m_sections.put(section.m_key, section);
+            }
+            m_stored = null;
+        }
+        stored.release();
+    }
+
+    /**
+     * Deserialize the stored sections
+     *
+     * @param data
+     * @return
+     */
+    private static Section[] readSections(byte[] data) {
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            final Section[] result = new Section[in.readInt()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = Section.read(in);
+            }
+            return result;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Corrupted stored history", ex);
+        }
+    }
+}
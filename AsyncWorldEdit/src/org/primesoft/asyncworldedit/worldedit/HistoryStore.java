@@ -0,0 +1,454 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.worldedit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.blockPlacer.ReadService;
+
+/**
+ * Disk tier for the compact edit session histories. Each player keeps the
+ * most recent histories in memory, older and large histories are written
+ * to a per player file in the plugin folder and streamed back from the
+ * file when undo or redo reaches them. All file access is done
+ * sequentially by one background thread.
+ *
+ * @author SBPrime
+ */
+public class HistoryStore implements Runnable {
+
+    /**
+     * History files folder name
+     */
+    private final static String FOLDER = "history";
+
+    /**
+     * Get the history files folder
+     *
+     * @return
+     */
+    private static File getFolder() {
+        return new File(PluginMain.getInstance().getDataFolder(), FOLDER);
+    }
+
+    /**
+     * Remove all history files left by the previous run
+     */
+    public static void cleanup() {
+        File[] files = getFolder().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            if (f.isFile() && !f.delete()) {
+                f.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * A history written to the store
+     */
+    public class Entry {
+
+        private final PlayerHistory m_owner;
+        private final long m_offset;
+        private final int m_length;
+        private boolean m_isReleased;
+
+        private Entry(PlayerHistory owner, long offset, int length) {
+            m_owner = owner;
+            m_offset = offset;
+            m_length = length;
+        }
+
+        /**
+         * Read the stored history, waits for the store thread
+         *
+         * @return
+         */
+        public byte[] read() {
+            try {
+                return ReadService.get(submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return m_owner.read(Entry.this);
+                    }
+                }));
+            } catch (CancellationException ex) {
+                throw new IllegalStateException("The history store is stopped, the stored history is lost.");
+            }
+        }
+
+        /**
+         * Free the stored history
+         */
+        public void release() {
+            synchronized (this) {
+                if (m_isReleased) {
+                    return;
+                }
+                m_isReleased = true;
+            }
+
+            submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    m_owner.release();
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Weak edit session reference, the stored history is released when the
+     * session is collected
+     */
+    private static class SessionRef extends WeakReference<AsyncEditSession> {
+
+        private final PlayerHistory m_owner;
+
+        /**
+         * The stored history entry
+         */
+        private volatile Entry m_entry;
+
+        /**
+         * Is the history queued for the store
+         */
+        private volatile boolean m_isPending;
+
+        public SessionRef(AsyncEditSession session, PlayerHistory owner,
+                ReferenceQueue<AsyncEditSession> queue) {
+            super(session, queue);
+            m_owner = owner;
+        }
+    }
+
+    /**
+     * The stored histories of one player, the file is accessed only by the
+     * store thread
+     */
+    private class PlayerHistory {
+
+        /**
+         * Sessions in the creation order (store lock required)
+         */
+        private final List<SessionRef> m_sessions = new ArrayList<SessionRef>();
+
+        private final File m_file;
+        private RandomAccessFile m_raf;
+        private long m_writePos;
+        private int m_live;
+
+        public PlayerHistory(String player) {
+            m_file = new File(getFolder(), player.replaceAll("[^A-Za-z0-9_\\-]", "_") + ".bin");
+        }
+
+        public Entry append(byte[] data) throws IOException {
+            if (m_raf == null) {
+                File folder = m_file.getParentFile();
+                if (!folder.exists() && !folder.mkdirs()) {
+                    throw new IOException("Unable to create folder " + folder);
+                }
+                m_raf = new RandomAccessFile(m_file, "rw");
+                m_raf.setLength(0);
+                m_writePos = 0;
+            }
+
+            final Entry result = new Entry(this, m_writePos, data.length);
+            m_raf.seek(m_writePos);
+            m_raf.write(data);
+            m_writePos += data.length;
+            m_live++;
+            return result;
+        }
+
+        public byte[] read(Entry entry) throws IOException {
+            final byte[] result = new byte[entry.m_length];
+            m_raf.seek(entry.m_offset);
+            m_raf.readFully(result);
+            return result;
+        }
+
+        public void release() throws IOException {
+            m_live--;
+            if (m_live == 0 && m_raf != null) {
+                //No live histories, reuse the file from the start
+                m_raf.setLength(0);
+                m_writePos = 0;
+            }
+        }
+
+        public void close() {
+            if (m_raf == null) {
+                return;
+            }
+            try {
+                m_raf.close();
+            } catch (IOException ex) {
+            }
+            m_raf = null;
+            if (!m_file.delete()) {
+                m_file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Number of the most recent histories kept in memory
+     */
+    private final int m_keep;
+
+    /**
+     * Histories with more blocks are stored even if they are recent
+     */
+    private final int m_maxSize;
+
+    /**
+     * Player histories
+     */
+    private final HashMap<String, PlayerHistory> m_players;
+
+    /**
+     * The collected sessions
+     */
+    private final ReferenceQueue<AsyncEditSession> m_collected;
+
+    /**
+     * The store thread tasks
+     */
+    private final LinkedBlockingQueue<FutureTask<?>> m_tasks;
+
+    /**
+     * The store thread
+     */
+    private final Thread m_thread;
+
+    private volatile boolean m_isRunning;
+
+    public HistoryStore(int keep, int maxSize) {
+        m_keep = keep;
+        m_maxSize = maxSize;
+        m_players = new HashMap<String, PlayerHistory>();
+        m_collected = new ReferenceQueue<AsyncEditSession>();
+        m_tasks = new LinkedBlockingQueue<FutureTask<?>>();
+        m_isRunning = true;
+
+        m_thread = new Thread(this, "AsyncWorldEdit history store");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (m_isRunning) {
+            try {
+                m_tasks.take().run();
+            } catch (InterruptedException ex) {
+                //Stop requested
+            }
+        }
+    }
+
+    /**
+     * Load the stored histories back to memory, stop the store thread and
+     * remove the history files
+     */
+    public void stop() {
+        final List<CompactHistory> stored = new ArrayList<CompactHistory>();
+        synchronized (this) {
+            for (PlayerHistory history : m_players.values()) {
+                for (SessionRef ref : history.m_sessions) {
+                    final AsyncEditSession session = ref.get();
+                    final CompactHistory compact = session != null ? session.getCompactHistory() : null;
+                    if (compact != null && compact.isStored()) {
+                        stored.add(compact);
+                    }
+                }
+            }
+        }
+
+        //The sessions outlive the store when the plugin is reloaded
+        for (CompactHistory compact : stored) {
+            try {
+                compact.load();
+            } catch (RuntimeException ex) {
+                PluginMain.log("Unable to load the stored history: " + ex.getMessage());
+            }
+        }
+
+        m_isRunning = false;
+        m_thread.interrupt();
+        try {
+            m_thread.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (FutureTask<?> task = m_tasks.poll(); task != null; task = m_tasks.poll()) {
+            task.cancel(false);
+        }
+
+        synchronized (this) {
+            for (PlayerHistory history : m_players.values()) {
+                history.close();
+            }
+            m_players.clear();
+        }
+    }
+
+    /**
+     * Queue the task for the store thread
+     *
+     * @param <T>
+     * @param task
+     * @return
+     */
+    private <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> result = new FutureTask<T>(task);
+        if (!m_isRunning) {
+            result.cancel(false);
+        } else {
+            m_tasks.add(result);
+        }
+        return result;
+    }
+
+    /**
+     * Register a new player edit session
+     *
+     * @param player
+     * @param session
+     */
+    public void register(String player, AsyncEditSession session) {
+        if (player == null) {
+            return;
+        }
+
+        synchronized (this) {
+            PlayerHistory history = m_players.get(player);
+            if (history == null) {
+                history = new PlayerHistory(player);
+                m_players.put(player, history);
+            }
+            history.m_sessions.add(new SessionRef(session, history, m_collected));
+        }
+        update(player);
+    }
+
+    /**
+     * Store the player histories that are over the limits
+     *
+     * @param player
+     */
+    public synchronized void update(String player) {
+        for (Reference<? extends AsyncEditSession> ref = m_collected.poll(); ref != null;
+                ref = m_collected.poll()) {
+            SessionRef sessionRef = (SessionRef) ref;
+            sessionRef.m_owner.m_sessions.remove(sessionRef);
+            Entry entry = sessionRef.m_entry;
+            if (entry != null) {
+                entry.release();
+            }
+        }
+
+        final PlayerHistory history = player != null ? m_players.get(player) : null;
+        if (history == null) {
+            return;
+        }
+
+        int kept = 0;
+        final List<SessionRef> sessions = history.m_sessions;
+        //The newest session is still recording
+        for (int i = sessions.size() - 2; i >= 0; i--) {
+            final SessionRef ref = sessions.get(i);
+            final AsyncEditSession session = ref.get();
+            final CompactHistory compact = session != null ? session.getCompactHistory() : null;
+            if (compact == null || compact.size() == 0 || compact.isStored()) {
+                continue;
+            }
+
+            kept++;
+            if (ref.m_isPending || !session.isIdle()
+                    || (kept <= m_keep && compact.size() <= m_maxSize)) {
+                continue;
+            }
+
+            ref.m_isPending = true;
+            submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    try {
+                        store(history, ref, compact);
+                    } finally {
+                        ref.m_isPending = false;
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the history to the player file (store thread)
+     *
+     * @param history
+     * @param ref
+     * @param compact
+     */
+    private void store(PlayerHistory history, SessionRef ref, CompactHistory compact) {
+        try {
+            final int[] version = new int[1];
+            final byte[] data = compact.save(version);
+            if (data == null) {
+                return;
+            }
+
+            final Entry entry = history.append(data);
+            if (compact.detach(version[0], entry)) {
+                ref.m_entry = entry;
+            } else {
+                entry.release();
+            }
+        } catch (IOException ex) {
+            PluginMain.log("Unable to store the history: " + ex.getMessage());
+        }
+    }
+}
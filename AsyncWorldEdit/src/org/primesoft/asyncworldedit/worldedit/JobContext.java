@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.worldedit;
+
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import java.util.HashMap;
+import org.primesoft.asyncworldedit.ConfigProvider;
+import org.primesoft.asyncworldedit.blockPlacer.BlockPlacerBlockSegment;
+import org.primesoft.asyncworldedit.blockPlacer.BlockPlacerJobEntry;
+import org.primesoft.asyncworldedit.utils.LongIntHashMap;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
+
+/**
+ * Producer side state of the async job running on the current thread
+ *
+ * @author SBPrime
+ */
+public class JobContext {
+
+    /**
+     * Overlay entry stored in the overlay blocks map
+     */
+    private final static int OVERLAY_OBJECT = -1;
+
+    /**
+     * Access not checked
+     */
+    public final static byte ACCESS_UNKNOWN = 0;
+
+    /**
+     * All blocks in the section can by placed
+     */
+    public final static byte ACCESS_ALLOWED = 1;
+
+    /**
+     * No blocks in the section can by placed
+     */
+    public final static byte ACCESS_DENIED = 2;
+
+    /**
+     * The section is on an access boundary, check each block
+     */
+    public final static byte ACCESS_MIXED = 3;
+
+    /**
+     * The current thread job context
+     */
+    private final static ThreadLocal<JobContext> s_current = new ThreadLocal<JobContext>();
+
+    /**
+     * Start a new job context on the current thread
+     *
+     * @param job
+     * @return
+     */
+    public static JobContext begin(BlockPlacerJobEntry job) {
+        JobContext result = new JobContext(job);
+        s_current.set(result);
+        return result;
+    }
+
+    /**
+     * End the job context on the current thread
+     */
+    public static void end() {
+        s_current.remove();
+    }
+
+    /**
+     * Get the current thread job context
+     *
+     * @return job context or null if no job is running
+     */
+    public static JobContext current() {
+        return s_current.get();
+    }
+
+    /**
+     * The job
+     */
+    private final BlockPlacerJobEntry m_job;
+
+    /**
+     * Cached access checks, one entry per chunk section
+     */
+    private final HashMap<Long, Byte> m_access;
+
+    /**
+     * The world of the cached access checks
+     */
+    private String m_accessWorld;
+
+    /**
+     * Time of the first cached access check
+     */
+    private long m_accessTime;
+
+    /**
+     * The chunk snapshots read by the job
+     */
+    private SnapshotCache m_snapshots;
+
+    /**
+     * Blocks written by the job (packed block + 1)
+     */
+    private final LongIntHashMap m_overlay;
+
+    /**
+     * Written blocks that can not by packed
+     */
+    private final HashMap<Long, BaseBlock> m_overlayBlocks;
+
+    /**
+     * Maximum number of overlay entries
+     */
+    private final int m_overlayLimit;
+
+    private JobContext(BlockPlacerJobEntry job) {
+        m_job = job;
+        m_access = new HashMap<Long, Byte>();
+        m_overlay = new LongIntHashMap(0);
+        m_overlayBlocks = new HashMap<Long, BaseBlock>();
+        m_overlayLimit = ConfigProvider.getOverlaySize();
+    }
+
+    /**
+     * The job
+     *
+     * @return
+     */
+    public BlockPlacerJobEntry getJob() {
+        return m_job;
+    }
+
+    /**
+     * The job ID
+     *
+     * @return
+     */
+    public int getJobId() {
+        return m_job.getJobId();
+    }
+
+    /**
+     * Get the job chunk snapshot cache
+     *
+     * @return the cache or null if the snapshot reads are disabled
+     */
+    public SnapshotCache getSnapshots() {
+        if (m_snapshots == null) {
+            final int size = ConfigProvider.getSnapshotCacheSize();
+            if (size <= 0) {
+                return null;
+            }
+            m_snapshots = new SnapshotCache(size, ConfigProvider.getSnapshotPrefetch());
+        }
+        return m_snapshots;
+    }
+
+    /**
+     * Remember the block written by the job. When the overlay is full only
+     * the already written positions are updated.
+     *
+     * @param location
+     * @param block
+     */
+    public void recordWrite(Vector location, BaseBlock block) {
+        if (block == null) {
+            return;
+        }
+
+        final long position = PackedPosition.pack(location);
+        final int old = m_overlay.get(position);
+        if (old == 0 && m_overlay.size() >= m_overlayLimit) {
+            return;
+        }
+        if (old == OVERLAY_OBJECT) {
+            m_overlayBlocks.remove(position);
+        }
+
+        if (BlockPlacerBlockSegment.canPack(block)) {
+            m_overlay.put(position, BlockPlacerBlockSegment.packBlock(block) + 1);
+        } else {
+            m_overlay.put(position, OVERLAY_OBJECT);
+            m_overlayBlocks.put(position, block);
+        }
+    }
+
+    /**
+     * Get the last block written by the job to the location
+     *
+     * @param location
+     * @return the block or null if the job did not write to the location
+     */
+    public BaseBlock getWrite(Vector location) {
+        if (m_overlay.isEmpty()) {
+            return null;
+        }
+
+        final long position = PackedPosition.pack(location);
+        final int block = m_overlay.get(position);
+        if (block == 0) {
+            return null;
+        }
+        if (block == OVERLAY_OBJECT) {
+            return m_overlayBlocks.get(position);
+        }
+
+        return BlockPlacerBlockSegment.unpackBlock(block - 1);
+    }
+
+    /**
+     * Get the cached access for the chunk section, the cache is cleared when
+     * the world changes or the cache is older than the TTL
+     *
+     * @param world world name
+     * @param section packed section coordinates
+     * @param ttl cache time to live (ms)
+     * @return the cached access or ACCESS_UNKNOWN
+     */
+    public byte getAccess(String world, long section, long ttl) {
+        final long now = System.currentTimeMillis();
+        if (!world.equals(m_accessWorld) || now - m_accessTime > ttl) {
+            m_access.clear();
+            m_accessWorld = world;
+            m_accessTime = now;
+            return ACCESS_UNKNOWN;
+        }
+
+        Byte result = m_access.get(section);
+        return result != null ? result : ACCESS_UNKNOWN;
+    }
+
+    /**
+     * Cache the access for the chunk section
+     *
+     * @param section packed section coordinates
+     * @param access
+     */
+    public void setAccess(long section, byte access) {
+        m_access.put(section, access);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.worldedit;
+
+import com.sk89q.worldedit.Vector;
+import com.sk89q.worldedit.blocks.BaseBlock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.primesoft.asyncworldedit.PluginMain;
+import org.primesoft.asyncworldedit.blockPlacer.BlockPlacer;
+import org.primesoft.asyncworldedit.blockPlacer.BlockPlacerGetChunkEntry;
+import org.primesoft.asyncworldedit.blockPlacer.ReadService;
+
+/**
+ * Chunk snapshot cache used by the async jobs to read the world without a
+ * main thread round-trip for each block. The missing chunks are requested
+ * from the main thread in batches, the least recently used chunks are
+ * evicted.
+ *
+ * @author SBPrime
+ */
+public class SnapshotCache {
+
+    /**
+     * Blocks with tile entities, these are read from the world
+     */
+    private final static boolean[] TILE_ENTITIES = new boolean[4096];
+
+    static {
+        int[] ids = new int[]{
+            23, 25, 52, 54, 61, 62, 63, 68, 84, 116, 117, 119, 130, 137,
+            138, 140, 144, 146, 149, 150, 151, 154, 158, 176, 177, 178
+        };
+        for (int id : ids) {
+            TILE_ENTITIES[id] = true;
+        }
+    }
+
+    /**
+     * The snapshots
+     */
+    private final LinkedHashMap<Long, ChunkSnapshot> m_chunks;
+
+    /**
+     * Number of chunks requested around a missing chunk
+     */
+    private final int m_prefetch;
+
+    /**
+     * The snapshots world
+     */
+    private String m_world;
+
+    /**
+     * Create new snapshot cache
+     *
+     * @param size maximum number of cached chunks
+     * @param prefetch number of chunks requested around a missing chunk
+     */
+    public SnapshotCache(final int size, int prefetch) {
+        m_chunks = new LinkedHashMap<Long, ChunkSnapshot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ChunkSnapshot> eldest) {
+                return size() > size;
+            }
+        };
+        m_prefetch = prefetch;
+    }
+
+    private static long getKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xffffffffL);
+    }
+
+    /**
+     * Get the snapshot containing the location, missing chunks are requested
+     * from the main thread
+     *
+     * @param session
+     * @param location
+     * @return the snapshot or null if not available
+     */
+    private ChunkSnapshot getSnapshot(AsyncEditSession session, Vector location) {
+        final World world = session.getCBWorld();
+        if (world == null) {
+            return null;
+        }
+
+        final int y = location.getBlockY();
+        if (y < 0 || y >= world.getMaxHeight()) {
+            return null;
+        }
+
+        if (!world.getName().equals(m_world)) {
+            m_chunks.clear();
+            m_world = world.getName();
+        }
+
+        final int cx = location.getBlockX() >> 4;
+        final int cz = location.getBlockZ() >> 4;
+        final long key = getKey(cx, cz);
+        ChunkSnapshot result = m_chunks.get(key);
+        if (result == null) {
+            fetch(world, cx, cz);
+            result = m_chunks.get(key);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the block type and data, blocks with tile entities are not read
+     *
+     * @param session
+     * @param location
+     * @return the block or null if the block shuld by read from the world
+     */
+    public BaseBlock getBlock(AsyncEditSession session, Vector location) {
+        final ChunkSnapshot snapshot = getSnapshot(session, location);
+        if (snapshot == null) {
+            return null;
+        }
+
+        final int x = location.getBlockX() & 15;
+        final int y = location.getBlockY();
+        final int z = location.getBlockZ() & 15;
+        final int type = snapshot.getBlockTypeId(x, y, z);
+        if (type < 0 || type >= TILE_ENTITIES.length || TILE_ENTITIES[type]) {
+            return null;
+        }
+
+        return new BaseBlock(type, snapshot.getBlockData(x, y, z));
+    }
+
+    /**
+     * Request the chunk and the missing loaded chunks around it from the
+     * main thread
+     *
+     * @param world
+     * @param cx
+     * @param cz
+     */
+    private void fetch(World world, int cx, int cz) {
+        final int side = m_prefetch * 2 + 1;
+        final int[] request = new int[side * side * 2];
+        int cnt = 0;
+        request[cnt++] = cx;
+        request[cnt++] = cz;
+        for (int x = cx - m_prefetch; x <= cx + m_prefetch; x++) {
+            for (int z = cz - m_prefetch; z <= cz + m_prefetch; z++) {
+                if ((x != cx || z != cz) && !m_chunks.containsKey(getKey(x, z))) {
+                    request[cnt++] = x;
+                    request[cnt++] = z;
+                }
+            }
+        }
+
+        final int[] chunks = new int[cnt];
+        System.arraycopy(request, 0, chunks, 0, cnt);
+
+        final BlockPlacerGetChunkEntry entry = new BlockPlacerGetChunkEntry(world, chunks);
+        final BlockPlacer blockPlacer = PluginMain.getInstance().getBlockPlacer();
+        final ChunkSnapshot[] snapshots;
+        if (blockPlacer.isMainTask()) {
+            snapshots = entry.call();
+        } else {
+            snapshots = ReadService.get(blockPlacer.addGetTask(world, cx, cz, entry));
+        }
+
+        for (int i = 0; i < snapshots.length; i++) {
+            if (snapshots[i] != null) {
+                m_chunks.put(getKey(chunks[i * 2], chunks[i * 2 + 1]), snapshots[i]);
+            }
+        }
+        //Make sure the requested chunk is the most recently used
+        m_chunks.get(getKey(cx, cz));
+    }
+}
@@ -26,40 +26,150 @@ package org.primesoft.asyncworldedit.worldedit;
 import com.sk89q.worldedit.EditSession;
 import com.sk89q.worldedit.Vector;
 import com.sk89q.worldedit.blocks.BaseBlock;
-import java.util.AbstractMap.SimpleEntry;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map.Entry;
+import java.util.HashMap;
+import org.primesoft.asyncworldedit.utils.LongIntHashMap;
+import org.primesoft.asyncworldedit.utils.PackedPosition;
 
 /**
+ * Streams the WorldEdit history to the undo session. The history is read
+ * twice: the scan pass finds the positions changed more than once, the
+ * stream pass forwards only the last history entry of each position to
+ * the target session as soon as it is read.
  *
  * @author SBPrime
  */
 public class UndoSession extends EditSession {
-    private List<Entry<Vector, BaseBlock>> m_undoQueue;
 
-    @SuppressWarnings("unchecked")
-	public Entry<Vector, BaseBlock>[] getEntries()
-    {
-        return m_undoQueue.toArray(new Entry[0]);
-    }
-    
-    
+    /**
+     * Number of blocks between the cancel checks
+     */
+    private final static int BATCH_SIZE = 4096;
+
+    /**
+     * Positions read by the scan pass, one bitset per chunk section
+     */
+    private final HashMap<Long, long[]> m_seen;
+
+    /**
+     * Number of skipped history entries for the positions changed more
+     * than once
+     */
+    private final LongIntHashMap m_duplicates;
+
+    /**
+     * The undo target, null for the scan pass
+     */
+    private final EditSession m_target;
+
+    /**
+     * The cancelable session
+     */
+    private final CancelabeEditSession m_session;
+
+    /**
+     * Last section bitset
+     */
+    private long[] m_lastSection;
+
+    /**
+     * Last section key
+     */
+    private long m_lastKey;
+
+    /**
+     * Number of blocks in the current batch
+     */
+    private int m_batch;
+
+    /**
+     * Create the scan pass session
+     */
     public UndoSession() {
         super(null, -1);
-        
-        m_undoQueue = new ArrayList<Entry<Vector, BaseBlock>>();
+
+        m_seen = new HashMap<Long, long[]>();
+        m_duplicates = new LongIntHashMap(0);
+        m_target = null;
+        m_session = null;
     }
-    
+
+    /**
+     * Create the stream pass session
+     *
+     * @param scan the scan pass session
+     * @param session the cancelable session
+     * @param target the undo target
+     */
+    public UndoSession(UndoSession scan, CancelabeEditSession session, EditSession target) {
+        super(null, -1);
+
+        m_seen = null;
+        m_duplicates = scan.m_duplicates;
+        m_target = target;
+        m_session = session;
+    }
+
     @Override
     public boolean smartSetBlock(Vector pt, BaseBlock block) {
-        m_undoQueue.add(new SimpleEntry<Vector, BaseBlock>(pt, block));
-        return true;
+        final int x = pt.getBlockX();
+        final int y = pt.getBlockY();
+        final int z = pt.getBlockZ();
+        final long position = PackedPosition.pack(x, y, z);
+
+        if (m_target == null) {
+            final long[] section = getSection(x, y, z);
+            final int idx = ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+            final long mask = 1L << (idx & 63);
+            if ((section[idx >> 6] & mask) != 0) {
+                m_duplicates.add(position, 1);
+            } else {
+                section[idx >> 6] |= mask;
+            }
+            return true;
+        }
+
+        if (++m_batch >= BATCH_SIZE) {
+            m_batch = 0;
+            if (m_session != null && m_session.isCanceled()) {
+                throw new IllegalArgumentException(m_session.new SessionCanceled());
+            }
+        }
+
+        if (!m_duplicates.isEmpty() && m_duplicates.get(position) > 0) {
+            m_duplicates.add(position, -1);
+            return true;
+        }
+        return m_target.smartSetBlock(pt, block);
+    }
+
+    private long[] getSection(int x, int y, int z) {
+        final long key = PackedPosition.pack(x >> 4, y >> 4, z >> 4);
+        if (m_lastSection != null && key == m_lastKey) {
+            return m_lastSection;
+        }
+
+        long[] section = m_seen.get(key);
+        if (section == null) {
+            section = new long[64];
+            m_seen.put(key, section);
+        }
+        m_lastKey = key;
+        m_lastSection = section;
+        return section;
+    }
+
+    /**
+     * Release the scan pass bitsets
+     */
+    public void clearSeen() {
+        if (m_seen != null) {
+            m_seen.clear();
+            m_lastSection = null;
+        }
     }
-    
     
     @Override
     public void flushQueue()
     {
     }
-}
\ No newline at end of file
+}
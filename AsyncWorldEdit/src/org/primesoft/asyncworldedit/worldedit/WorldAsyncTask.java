@@ -69,6 +69,7 @@ public abstract class WorldAsyncTask extends BukkitRunnable {
 
     @Override
     public void run() {
+        JobContext.begin(m_job);
         try {
             m_job.setStatus(BlockPlacerJobEntry.JobStatus.Preparing);
             if (ConfigProvider.isTalkative()) {
@@ -90,6 +91,8 @@ public abstract class WorldAsyncTask extends BukkitRunnable {
             if (ex.getCause() instanceof CancelabeEditSession.SessionCanceled) {
                 PluginMain.say(m_player, ChatColor.LIGHT_PURPLE + "Job canceled.");
             }
+        } finally {
+            JobContext.end();
         }
 
         m_job.taskDone();
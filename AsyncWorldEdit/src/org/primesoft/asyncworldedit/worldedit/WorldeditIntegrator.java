@@ -24,6 +24,7 @@
 package org.primesoft.asyncworldedit.worldedit;
 
 import com.sk89q.minecraft.util.commands.SimpleInjector;
+import com.sk89q.worldedit.EditSession;
 import com.sk89q.worldedit.EditSessionFactory;
 import com.sk89q.worldedit.LocalConfiguration;
 import com.sk89q.worldedit.LocalSession;
@@ -239,6 +240,28 @@ public class WorldeditIntegrator implements Runnable {
         }
     }
 
+    /**
+     * Get the async edit session factory
+     *
+     * @return
+     */
+    public AsyncEditSessionFactory getEditSessionFactory() {
+        return m_factory;
+    }
+
+    /**
+     * Add the edit session to the player WorldEdit undo history
+     *
+     * @param player
+     * @param session
+     */
+    public void remember(String player, EditSession session) {
+        LocalSession localSession = m_worldEdit.getSession(player);
+        if (localSession != null) {
+            localSession.remember(session);
+        }
+    }
+
     /**
      * Stop the integrator
      */
@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.blockPlacer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Standalone enqueue contention benchmark. Producer threads add entries to
+ * a player queue while the main thread drains the queue once per tick. The
+ * time the main thread spends in each tick is measured for the old queue
+ * (producers and the main thread share one monitor) and for PlayerEntry.
+ *
+ * Usage: EnqueueBenchmark [producers] [seconds] [blocks per tick]
+ *
+ * @author SBPrime
+ */
+public class EnqueueBenchmark {
+
+    /**
+     * Producers pause when the queue is larger
+     */
+    private final static int MAX_QUEUED = 1000000;
+
+    /**
+     * Warm up time (ms)
+     */
+    private final static int WARMUP = 1000;
+
+    /**
+     * Queued entry that does nothing
+     */
+    private static class BenchEntry extends BlockPlacerEntry {
+
+        public BenchEntry(int jobId) {
+            super(null, jobId);
+        }
+
+        @Override
+        public boolean isDemanding() {
+            return false;
+        }
+
+        @Override
+        public void Process(BlockPlacer bp) {
+        }
+    }
+
+    /**
+     * The tested queue
+     */
+    private interface IBenchQueue {
+
+        void add(BlockPlacerEntry entry);
+
+        int poll(int count, List<BlockPlacerEntry> entries);
+
+        int size();
+    }
+
+    /**
+     * The old queue, the producers and the main thread take the block placer
+     * monitor and then the queue monitor
+     */
+    private static class MonitorQueue implements IBenchQueue {
+
+        private final Object m_mutex = new Object();
+
+        private final ArrayDeque<BlockPlacerEntry> m_queue = new ArrayDeque<BlockPlacerEntry>();
+
+        @Override
+        public void add(BlockPlacerEntry entry) {
+            synchronized (m_mutex) {
+                synchronized (m_queue) {
+                    m_queue.add(entry);
+                }
+            }
+        }
+
+        @Override
+        public int poll(int count, List<BlockPlacerEntry> entries) {
+            synchronized (m_mutex) {
+                synchronized (m_queue) {
+                    int result = 0;
+                    while (result < count && !m_queue.isEmpty()) {
+                        entries.add(m_queue.poll());
+                        result++;
+                    }
+                    return result;
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            synchronized (m_queue) {
+                return m_queue.size();
+            }
+        }
+    }
+
+    /**
+     * The player entry queue, the producers take the producer lock and the
+     * main thread polls the lanes without locking
+     */
+    private static class PlayerEntryQueue implements IBenchQueue {
+
+        private final PlayerEntry m_entry = new PlayerEntry(new AtomicInteger(), new AtomicInteger());
+
+        @Override
+        public void add(BlockPlacerEntry entry) {
+            m_entry.add(entry);
+        }
+
+        @Override
+        public int poll(int count, List<BlockPlacerEntry> entries) {
+            return m_entry.poll(count, entries);
+        }
+
+        @Override
+        public int size() {
+            return m_entry.getQueueSize();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final int blocks = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        System.out.println("Producers: " + producers + ", time: " + seconds
+                + "s, blocks per tick: " + blocks);
+
+        run("monitor", new MonitorQueue(), producers, WARMUP, blocks, false);
+        run("monitor", new MonitorQueue(), producers, seconds * 1000, blocks, true);
+        run("player entry", new PlayerEntryQueue(), producers, WARMUP, blocks, false);
+        run("player entry", new PlayerEntryQueue(), producers, seconds * 1000, blocks, true);
+    }
+
+    /**
+     * Run the benchmark for one queue
+     *
+     * @param name queue name
+     * @param queue the queue
+     * @param producers number of producer threads
+     * @param time run time (ms)
+     * @param blocks blocks polled per tick
+     * @param print print the results
+     * @throws InterruptedException
+     */
+    private static void run(String name, final IBenchQueue queue, int producers,
+            int time, int blocks, boolean print) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong added = new AtomicLong();
+        final Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int jobId = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long cnt = 0;
+                    while (running.get()) {
+                        if (queue.size() > MAX_QUEUED) {
+                            Thread.yield();
+                            continue;
+                        }
+                        queue.add(new BenchEntry(jobId));
+                        cnt++;
+                    }
+                    added.addAndGet(cnt);
+                }
+            });
+            threads[i].start();
+        }
+
+        final List<BlockPlacerEntry> entries = new ArrayList<BlockPlacerEntry>(blocks);
+        long[] samples = new long[1024];
+        int ticks = 0;
+        long polled = 0;
+        final long end = System.currentTimeMillis() + time;
+        while (System.currentTimeMillis() < end) {
+            final long start = System.nanoTime();
+            polled += queue.poll(blocks, entries);
+            final long tickTime = System.nanoTime() - start;
+            entries.clear();
+
+            if (ticks == samples.length) {
+                samples = Arrays.copyOf(samples, ticks * 2);
+            }
+            samples[ticks++] = tickTime;
+            Thread.sleep(1);
+        }
+
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (!print || ticks == 0) {
+            return;
+        }
+
+        Arrays.sort(samples, 0, ticks);
+        long sum = 0;
+        for (int i = 0; i < ticks; i++) {
+            sum += samples[i];
+        }
+        System.out.println(String.format("%-12s ticks: %d, added: %d/s, polled: %d/s, "
+                + "tick time (us) avg: %.1f, p50: %.1f, p99: %.1f, max: %.1f",
+                name, ticks, added.get() * 1000 / time, polled * 1000 / time,
+                sum / 1000.0 / ticks, samples[ticks / 2] / 1000.0,
+                samples[(int) (ticks * 0.99)] / 1000.0, samples[ticks - 1] / 1000.0));
+    }
+}
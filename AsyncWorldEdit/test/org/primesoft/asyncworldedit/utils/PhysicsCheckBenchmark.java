@@ -0,0 +1,277 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 SBPrime.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.primesoft.asyncworldedit.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Standalone physics event check benchmark. Producer threads add and
+ * remove frozen locations while the main thread checks block neighbourhoods
+ * the same way the physics event handlers do. The latency of every check
+ * is measured for the old location maps (one mutex shared by the producers
+ * and the main thread) and for LocationIndex.
+ *
+ * Usage: PhysicsCheckBenchmark [producers] [seconds]
+ *
+ * @author SBPrime
+ */
+public class PhysicsCheckBenchmark {
+
+    /**
+     * Number of locations a producer adds before removing them
+     */
+    private final static int BATCH = 4096;
+
+    /**
+     * Size of the area used by one producer
+     */
+    private final static int AREA = 64;
+
+    /**
+     * Number of checks in one tick
+     */
+    private final static int CHECKS_PER_TICK = 100;
+
+    /**
+     * Neighbourhood size used by the event handlers
+     */
+    private final static int DELTA = 1;
+
+    /**
+     * Warm up time (ms)
+     */
+    private final static int WARMUP = 1000;
+
+    /**
+     * The tested location index
+     */
+    private interface IBenchIndex {
+
+        void add(int x, int y, int z);
+
+        void remove(int x, int y, int z);
+
+        boolean containsNear(int x, int y, int z, int delta);
+    }
+
+    /**
+     * The old location maps, all operations take one mutex
+     */
+    private static class MonitorIndex implements IBenchIndex {
+
+        private final Object m_mutex = new Object();
+
+        private final HashMap<Integer, HashMap<Integer, HashMap<Integer, Integer>>> m_locked
+                = new HashMap<Integer, HashMap<Integer, HashMap<Integer, Integer>>>();
+
+        @Override
+        public void add(int x, int y, int z) {
+            synchronized (m_mutex) {
+                HashMap<Integer, HashMap<Integer, Integer>> yhash = m_locked.get(x);
+                if (yhash == null) {
+                    yhash = new HashMap<Integer, HashMap<Integer, Integer>>();
+                    m_locked.put(x, yhash);
+                }
+
+                HashMap<Integer, Integer> zhash = yhash.get(y);
+                if (zhash == null) {
+                    zhash = new HashMap<Integer, Integer>();
+                    yhash.put(y, zhash);
+                }
+
+                Integer val = zhash.get(z);
+                zhash.put(z, val == null ? 1 : val + 1);
+            }
+        }
+
+        @Override
+        public void remove(int x, int y, int z) {
+            synchronized (m_mutex) {
+                HashMap<Integer, HashMap<Integer, Integer>> yhash = m_locked.get(x);
+                if (yhash == null) {
+                    return;
+                }
+
+                HashMap<Integer, Integer> zhash = yhash.get(y);
+                if (zhash == null) {
+                    return;
+                }
+
+                Integer val = zhash.remove(z);
+                if (val != null && val > 1) {
+                    zhash.put(z, val - 1);
+                }
+            }
+        }
+
+        @Override
+        public boolean containsNear(int x, int y, int z, int delta) {
+            synchronized (m_mutex) {
+                for (int px = x - delta; px <= x + delta; px++) {
+                    HashMap<Integer, HashMap<Integer, Integer>> yhash = m_locked.get(px);
+                    if (yhash == null) {
+                        continue;
+                    }
+
+                    for (int py = y - delta; py <= y + delta; py++) {
+                        HashMap<Integer, Integer> zhash = yhash.get(py);
+                        if (zhash == null) {
+                            continue;
+                        }
+
+                        for (int pz = z - delta; pz <= z + delta; pz++) {
+                            if (zhash.containsKey(pz)) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The lock free location index
+     */
+    private static class LockFreeIndex implements IBenchIndex {
+
+        private final LocationIndex m_index = new LocationIndex();
+
+        @Override
+        public void add(int x, int y, int z) {
+            m_index.add(x, y, z);
+        }
+
+        @Override
+        public void remove(int x, int y, int z) {
+            m_index.remove(x, y, z);
+        }
+
+        @Override
+        public boolean containsNear(int x, int y, int z, int delta) {
+            return m_index.containsNear(x, y, z, delta);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        System.out.println("Producers: " + producers + ", time: " + seconds + "s");
+
+        run("monitor", new MonitorIndex(), producers, WARMUP, false);
+        run("monitor", new MonitorIndex(), producers, seconds * 1000, true);
+        run("lock free", new LockFreeIndex(), producers, WARMUP, false);
+        run("lock free", new LockFreeIndex(), producers, seconds * 1000, true);
+    }
+
+    /**
+     * Run the benchmark for one index
+     *
+     * @param name index name
+     * @param index the index
+     * @param producers number of producer threads
+     * @param time run time (ms)
+     * @param print print the results
+     * @throws InterruptedException
+     */
+    private static void run(String name, final IBenchIndex index, final int producers,
+            int time, boolean print) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong changes = new AtomicLong();
+        final Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int offset = i * AREA;
+            final Random random = new Random(i);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final int[] positions = new int[BATCH * 3];
+                    long cnt = 0;
+                    while (running.get()) {
+                        for (int j = 0; j < positions.length; j += 3) {
+                            positions[j] = offset + random.nextInt(AREA);
+                            positions[j + 1] = random.nextInt(AREA);
+                            positions[j + 2] = random.nextInt(AREA);
+                            index.add(positions[j], positions[j + 1], positions[j + 2]);
+                        }
+                        for (int j = 0; j < positions.length; j += 3) {
+                            index.remove(positions[j], positions[j + 1], positions[j + 2]);
+                        }
+                        cnt += BATCH * 2;
+                    }
+                    changes.addAndGet(cnt);
+                }
+            });
+            threads[i].start();
+        }
+
+        final Random random = new Random(-1);
+        long[] samples = new long[1 << 16];
+        int count = 0;
+        final long end = System.currentTimeMillis() + time;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < CHECKS_PER_TICK; i++) {
+                final int x = random.nextInt(AREA * producers);
+                final int y = random.nextInt(AREA);
+                final int z = random.nextInt(AREA);
+
+                final long start = System.nanoTime();
+                index.containsNear(x, y, z, DELTA);
+                final long checkTime = System.nanoTime() - start;
+
+                if (count == samples.length) {
+                    samples = Arrays.copyOf(samples, count * 2);
+                }
+                samples[count++] = checkTime;
+            }
+            Thread.sleep(1);
+        }
+
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (!print || count == 0) {
+            return;
+        }
+
+        Arrays.sort(samples, 0, count);
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += samples[i];
+        }
+        System.out.println(String.format("%-10s checks: %d, producer changes: %d/s, "
+                + "check time (ns) avg: %.0f, p50: %d, p99: %d, p99.9: %d, max: %d",
+                name, count, changes.get() * 1000 / time, (double) sum / count,
+                samples[count / 2], samples[(int) (count * 0.99)],
+                samples[(int) (count * 0.999)], samples[count - 1]));
+    }
+}